@@ -0,0 +1,157 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并单键加载的CacheLoader
+ *
+ * LoadingCache在多个线程同时未命中不同的键时，会分别调用CacheLoader.load，每个键一次往返
+ * BatchingCacheLoader把一小段时间窗口内的单键加载攒成一批，只调用一次被装饰加载器的loadAll，再把结果分发给每个等待的线程
+ * 攒够maxBatchSize个键时立即由当前线程发起加载，否则在窗口结束时由调度线程发起
+ * 调度线程池拒绝任务(例如已经关闭)时，由第一个未命中的线程立即加载，不会留下永远不完成的批次
+ *
+ * 被装饰的CacheLoader必须重载loadAll
+ **/
+public class BatchingCacheLoader<K, V> extends CacheLoader<K, V> {
+
+    private final CacheLoader<K, V> delegate;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final ScheduledExecutorService scheduler;
+
+    // 当前窗口内等待加载的键
+    private Map<K, SettableFuture<V>> pending = new LinkedHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * @param delegate     实现了loadAll的加载器
+     * @param maxBatchSize 一批最多包含的键数
+     * @param window       等待更多键加入的最长时间
+     * @param unit         时间单位
+     * @param scheduler    窗口结束时执行批量加载的线程池
+     */
+    public BatchingCacheLoader(CacheLoader<K, V> delegate, int maxBatchSize, long window, TimeUnit unit,
+                               ScheduledExecutorService scheduler) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive: %s", maxBatchSize);
+        Preconditions.checkArgument(window >= 0, "window cannot be negative: %s %s", window, unit);
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = Preconditions.checkNotNull(scheduler);
+    }
+
+    @Override
+    public V load(K key) throws Exception {
+        requestCount.incrementAndGet();
+        SettableFuture<V> future;
+        Map<K, SettableFuture<V>> full = null;
+        synchronized (this) {
+            future = pending.get(key);
+            if (future == null) {
+                future = SettableFuture.create();
+                pending.put(key, future);
+                if (pending.size() == 1 && !scheduleFlush(pending)) {
+                    // 调度线程池已经关闭，不再等待窗口结束，由当前线程立即加载
+                    full = takeBatch();
+                } else if (pending.size() >= maxBatchSize) {
+                    full = takeBatch();
+                }
+            }
+        }
+        if (full != null) {
+            flush(full);
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.throwIfInstanceOf(cause, Exception.class);
+            Throwables.throwIfUnchecked(cause);
+            throw e;
+        }
+    }
+
+    /**
+     * LoadingCache.getAll已经是批量请求，直接交给被装饰的加载器
+     */
+    @Override
+    public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+        batchCount.incrementAndGet();
+        return delegate.loadAll(keys);
+    }
+
+    // 窗口结束时，如果这一批还没有因为攒满被取走，由调度线程加载；调度线程池拒绝时返回false
+    private boolean scheduleFlush(final Map<K, SettableFuture<V>> batch) {
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    Map<K, SettableFuture<V>> expired = null;
+                    synchronized (BatchingCacheLoader.this) {
+                        if (pending == batch) {
+                            expired = takeBatch();
+                        }
+                    }
+                    if (expired != null) {
+                        flush(expired);
+                    }
+                }
+            }, windowNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // 调用方持有锁
+    private Map<K, SettableFuture<V>> takeBatch() {
+        Map<K, SettableFuture<V>> batch = pending;
+        pending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    private void flush(Map<K, SettableFuture<V>> batch) {
+        batchCount.incrementAndGet();
+        try {
+            Map<K, V> result = delegate.loadAll(ImmutableSet.copyOf(batch.keySet()));
+            for (Map.Entry<K, SettableFuture<V>> entry : batch.entrySet()) {
+                V value = result.get(entry.getKey());
+                if (value == null) {
+                    entry.getValue().setException(
+                            new InvalidCacheLoadException("loadAll failed to return a value for " + entry.getKey()));
+                } else {
+                    entry.getValue().set(value);
+                }
+            }
+        } catch (Throwable t) {
+            for (SettableFuture<V> future : batch.values()) {
+                future.setException(t);
+            }
+        }
+    }
+
+    // 调用load的次数
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    // 调用被装饰加载器loadAll的次数
+    public long batchCount() {
+        return batchCount.get();
+    }
+}
@@ -0,0 +1,281 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 有界的异步移除监听器
+ *
+ * RemovalListeners.asynchronous(listener, executor)为每个通知提交一个任务，队列无界
+ * 大量invalidateAll()或集中过期时，积压的通知会占用大量内存，监听器也要很久才能收到通知
+ * BoundedAsyncRemovalListener把通知放进固定大小的环形缓冲区，由一个排空任务成批交给监听器
+ * 缓冲区满时按OverflowPolicy处理，并提供队列深度等指标
+ *
+ * 监听器的调用是串行的：排空任务和RUN_INLINE可能在不同的线程中调用监听器，但同一时刻只有一个调用在执行
+ * RUN_INLINE先在当前线程送达缓冲区中更早的通知，再送达当前的通知，所以通知仍然按进入的顺序送达
+ * 监听器抛出的RuntimeException与Guava Cache一样记录日志后忽略
+ **/
+public class BoundedAsyncRemovalListener<K, V> implements RemovalListener<K, V> {
+
+    private static final Logger logger = Logger.getLogger(BoundedAsyncRemovalListener.class.getName());
+
+    /**
+     * 缓冲区满时的处理方式
+     */
+    public enum OverflowPolicy {
+        // 阻塞缓存操作，直到有空位
+        BLOCK,
+        // 丢弃最早的通知
+        DROP_OLDEST,
+        // 在当前线程直接通知监听器
+        RUN_INLINE
+    }
+
+    /**
+     * 成批接收移除通知的监听器
+     */
+    public interface BatchListener<K, V> {
+        void onRemoval(List<RemovalNotification<K, V>> notifications);
+    }
+
+    private final BatchListener<K, V> listener;
+    private final Executor executor;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+
+    private final RemovalNotification<K, V>[] ring;
+    private int head;
+    private int count;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    // 是否已经有排空任务在执行或排队，保证同一时刻只有一个排空任务，通知按顺序送达
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // 取出一批通知并送达的过程在这个锁内进行，排空任务和RUN_INLINE不会同时调用监听器
+    private final ReentrantLock deliveryLock = new ReentrantLock();
+
+    private int maxDepth;
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong inlineCount = new AtomicLong();
+
+    /**
+     * @param listener  成批接收通知的监听器
+     * @param executor  执行排空任务的线程池，可以与其他组件共享
+     * @param capacity  缓冲区能容纳的通知数
+     * @param batchSize 每批最多交给监听器的通知数
+     * @param policy    缓冲区满时的处理方式
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BoundedAsyncRemovalListener(BatchListener<K, V> listener, Executor executor,
+                                       int capacity, int batchSize, OverflowPolicy policy) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive: %s", batchSize);
+        this.listener = Preconditions.checkNotNull(listener);
+        this.executor = Preconditions.checkNotNull(executor);
+        this.policy = Preconditions.checkNotNull(policy);
+        this.batchSize = batchSize;
+        this.ring = new RemovalNotification[capacity];
+    }
+
+    /**
+     * 把逐个接收通知的RemovalListener适配为批量监听器
+     */
+    public static <K, V> BoundedAsyncRemovalListener<K, V> of(final RemovalListener<K, V> listener, Executor executor,
+                                                              int capacity, int batchSize, OverflowPolicy policy) {
+        Preconditions.checkNotNull(listener);
+        return new BoundedAsyncRemovalListener<>(new BatchListener<K, V>() {
+            public void onRemoval(List<RemovalNotification<K, V>> notifications) {
+                for (RemovalNotification<K, V> notification : notifications) {
+                    listener.onRemoval(notification);
+                }
+            }
+        }, executor, capacity, batchSize, policy);
+    }
+
+    @Override
+    public void onRemoval(RemovalNotification<K, V> notification) {
+        lock.lock();
+        try {
+            while (count == ring.length) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    count--;
+                    droppedCount.incrementAndGet();
+                } else if (policy == OverflowPolicy.RUN_INLINE) {
+                    inlineCount.incrementAndGet();
+                    lock.unlock();
+                    try {
+                        deliverInline(notification);
+                    } finally {
+                        lock.lock();
+                    }
+                    return;
+                } else {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            ring[(head + count) % ring.length] = notification;
+            count++;
+            maxDepth = Math.max(maxDepth, count);
+        } finally {
+            lock.unlock();
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            if (!deliverBatch()) {
+                draining.set(false);
+                // 释放标记后可能又有新通知进来，而它的提交者看到标记未释放，没有提交新的排空任务
+                if (isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // 取出一批通知并送达，缓冲区为空时返回false
+    private boolean deliverBatch() {
+        deliveryLock.lock();
+        try {
+            List<RemovalNotification<K, V>> batch = pollBatch();
+            if (batch.isEmpty()) {
+                return false;
+            }
+            deliver(batch);
+            return true;
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    // 缓冲区满时在当前线程送达：先送达缓冲区中已有的通知，再送达当前的通知
+    private void deliverInline(RemovalNotification<K, V> notification) {
+        deliveryLock.lock();
+        try {
+            // 最多送达一个缓冲区的量，其他线程持续写入时当前线程不会一直送达下去
+            int remaining = ring.length;
+            while (remaining > 0) {
+                List<RemovalNotification<K, V>> batch = pollBatch();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                deliver(batch);
+                remaining -= batch.size();
+            }
+            deliver(Collections.singletonList(notification));
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    private List<RemovalNotification<K, V>> pollBatch() {
+        lock.lock();
+        try {
+            int n = Math.min(count, batchSize);
+            List<RemovalNotification<K, V>> batch = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                batch.add(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            }
+            count -= n;
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliver(List<RemovalNotification<K, V>> batch) {
+        batchCount.incrementAndGet();
+        deliveredCount.addAndGet(batch.size());
+        try {
+            listener.onRemoval(batch);
+        } catch (RuntimeException e) {
+            // 与Guava Cache一样，监听器抛出的异常只记录日志，不影响缓存操作
+            logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+        }
+    }
+
+    private boolean isEmpty() {
+        lock.lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 当前缓冲区中等待送达的通知数
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 缓冲区达到过的最大深度
+    public int maxQueueDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long deliveredCount() {
+        return deliveredCount.get();
+    }
+
+    public long batchCount() {
+        return batchCount.get();
+    }
+
+    // DROP_OLDEST策略丢弃的通知数
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    // RUN_INLINE策略在缓存线程中直接送达的通知数
+    public long inlineCount() {
+        return inlineCount.get();
+    }
+}
@@ -0,0 +1,405 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 命中时不加锁的LoadingCache
+ *
+ * CacheBuilder构建的缓存设置了expireAfterAccess或maximumSize后，每次命中都要在段锁内调整访问顺序
+ * BufferedReadCache把缓存项放在ConcurrentHashMap中，命中时只做两件事：
+ *  更新缓存项的访问时间
+ *  把缓存项追加到当前线程对应的读缓冲区(按线程分组的环形数组)，缓冲区满或CAS失败时直接丢弃这次记录
+ * 某个读缓冲区写满后，在线程池中异步地把所有读缓冲区排空到LRU链表中
+ * 读缓冲区是有损的：丢失少量访问记录只会让LRU顺序略有偏差，不影响正确性
+ * 写操作和回收仍然在evictionLock内进行，写之前先排空读缓冲区
+ **/
+public class BufferedReadCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private final long maximumSize;
+    private final long expireAfterAccessNanos;
+    private final Ticker ticker;
+    private final Executor executor;
+    private final CacheLoader<? super K, V> loader;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    // 以下字段只在evictionLock内访问
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // LRU链表的哨兵，head.next是最近最少使用的缓存项
+    private final Node<K, V> head = new Node<>(null, null, 0);
+
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final int readBufferMask;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            evictionLock.lock();
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+                drainScheduled.set(false);
+            }
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferedReadCache(Builder<K, V> builder, CacheLoader<? super K, V> loader) {
+        this.maximumSize = builder.maximumSize;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.ticker = builder.ticker;
+        this.executor = builder.executor;
+        this.loader = loader;
+        int buffers = IntMath.ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors() * 2);
+        this.readBuffers = new ReadBuffer[buffers];
+        for (int i = 0; i < buffers; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+        this.readBufferMask = buffers - 1;
+        head.prev = head;
+        head.next = head;
+    }
+
+    public static <K, V> Builder<K, V> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * BufferedReadCache的构建器，必须设置maximumSize
+     */
+    public static class Builder<K, V> {
+        private long maximumSize = -1;
+        private long expireAfterAccessNanos = -1;
+        private Ticker ticker = Ticker.systemTicker();
+        private Executor executor = ForkJoinPool.commonPool();
+
+        private Builder() {
+        }
+
+        public Builder<K, V> maximumSize(long maximumSize) {
+            Preconditions.checkArgument(maximumSize >= 0, "maximumSize cannot be negative: %s", maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        // 缓存项在给定时间内没有被读/写访问，则回收
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Preconditions.checkNotNull(ticker);
+            return this;
+        }
+
+        // 排空读缓冲区的线程池，默认为ForkJoinPool.commonPool()
+        public Builder<K, V> executor(Executor executor) {
+            this.executor = Preconditions.checkNotNull(executor);
+            return this;
+        }
+
+        public Cache<K, V> build() {
+            Preconditions.checkState(maximumSize >= 0, "maximumSize must be set");
+            return new BufferedReadCache<>(this, null);
+        }
+
+        public LoadingCache<K, V> build(CacheLoader<? super K, V> loader) {
+            Preconditions.checkState(maximumSize >= 0, "maximumSize must be set");
+            return new BufferedReadCache<>(this, Preconditions.checkNotNull(loader));
+        }
+    }
+
+    /**
+     * 缓存项，同时是LRU链表的节点
+     */
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile long accessTime;
+
+        // 以下字段只在evictionLock内访问
+        Node<K, V> prev;
+        Node<K, V> next;
+        // 已经从data中移除
+        boolean removed;
+
+        Node(K key, V value, long accessTime) {
+            this.key = key;
+            this.value = value;
+            this.accessTime = accessTime;
+        }
+    }
+
+    /**
+     * 有损的环形读缓冲区，多个线程写入，只在evictionLock内读取
+     */
+    private static final class ReadBuffer<K, V> {
+        final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        volatile long readCounter;
+
+        // 记录一次访问，缓冲区写满时返回true
+        boolean offer(Node<K, V> node) {
+            long tail = writeCounter.get();
+            long size = tail - readCounter;
+            if (size >= BUFFER_SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & BUFFER_MASK), node);
+                return size + 1 >= BUFFER_SIZE;
+            }
+            // 与其他线程竞争失败，丢弃这次记录
+            return false;
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            statsCounter.recordMisses(1);
+            return null;
+        }
+        long now = expireAfterAccessNanos >= 0 ? ticker.read() : 0;
+        if (isExpired(node, now)) {
+            // 过期的缓存项在下一次维护时移除
+            statsCounter.recordMisses(1);
+            scheduleDrain();
+            return null;
+        }
+        if (expireAfterAccessNanos >= 0) {
+            node.accessTime = now;
+        }
+        statsCounter.recordHits(1);
+        int index = (int) (Thread.currentThread().getId() * 0x9E3779B9L) & readBufferMask;
+        if (readBuffers[index].offer(node)) {
+            scheduleDrain();
+        }
+        return node.value;
+    }
+
+    @Override
+    public V get(final K key) throws ExecutionException {
+        Preconditions.checkState(loader != null, "BufferedReadCache was built without a CacheLoader");
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            return getLoaded(existing);
+        }
+
+        long start = System.nanoTime();
+        try {
+            task.run();
+            value = getLoaded(task);
+            if (value == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, value);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            return value;
+        } catch (RuntimeException | ExecutionException | Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw e;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    // 按Guava Cache的约定包装加载过程中的异常
+    private V getLoaded(FutureTask<V> task) throws ExecutionException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw new ExecutionError((Error) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw new UncheckedExecutionException(cause);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        long now = ticker.read();
+        evictionLock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                node = new Node<>(key, value, now);
+                data.put(key, node);
+            } else {
+                node.value = value;
+                node.accessTime = now;
+                unlink(node);
+            }
+            linkLast(node);
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        evictionLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                node.removed = true;
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> node = head.next; node != head; node = node.next) {
+                node.removed = true;
+                data.remove(node.key, node);
+            }
+            head.prev = head;
+            head.next = head;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return expireAfterAccessNanos >= 0 && now - node.accessTime >= expireAfterAccessNanos;
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                drainScheduled.set(false);
+            }
+        }
+    }
+
+    // 在evictionLock内调用：排空读缓冲区，回收过期的和超出容量的缓存项
+    private void maintenance() {
+        drainReadBuffers();
+        if (expireAfterAccessNanos >= 0) {
+            long now = ticker.read();
+            // 链表大致按访问时间排序，从头部开始回收，遇到未过期的缓存项就停止
+            while (head.next != head && isExpired(head.next, now)) {
+                evict(head.next);
+            }
+        }
+        while (data.size() > maximumSize && head.next != head) {
+            evict(head.next);
+        }
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            long read = buffer.readCounter;
+            long write = buffer.writeCounter.get();
+            for (; read < write; read++) {
+                int index = (int) (read & BUFFER_MASK);
+                Node<K, V> node = buffer.slots.get(index);
+                if (node == null) {
+                    // 写入者已经占了位置但还没有写入，下次再处理
+                    break;
+                }
+                buffer.slots.lazySet(index, null);
+                if (!node.removed) {
+                    unlink(node);
+                    linkLast(node);
+                }
+            }
+            buffer.readCounter = read;
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        node.removed = true;
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            statsCounter.recordEviction();
+        }
+    }
+
+    private void linkLast(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+}
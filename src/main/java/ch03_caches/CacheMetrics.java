@@ -0,0 +1,72 @@
+package ch03_caches;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * InstrumentedCache在某一时刻的指标快照，由监控系统定时拉取
+ **/
+public final class CacheMetrics {
+
+    private final CacheStats stats;
+    private final LatencyHistogram.Snapshot getLatency;
+    private final LatencyHistogram.Snapshot loadLatency;
+    private final LatencyHistogram.Snapshot timeInCache;
+    private final ImmutableMap<RemovalCause, Long> removalCounts;
+    private final double windowHitRate;
+
+    CacheMetrics(CacheStats stats, LatencyHistogram.Snapshot getLatency, LatencyHistogram.Snapshot loadLatency,
+                 LatencyHistogram.Snapshot timeInCache, ImmutableMap<RemovalCause, Long> removalCounts,
+                 double windowHitRate) {
+        this.stats = stats;
+        this.getLatency = getLatency;
+        this.loadLatency = loadLatency;
+        this.timeInCache = timeInCache;
+        this.removalCounts = removalCounts;
+        this.windowHitRate = windowHitRate;
+    }
+
+    // Guava Cache自带的累计统计
+    public CacheStats stats() {
+        return stats;
+    }
+
+    // get的延迟(纳秒)，按采样记录
+    public LatencyHistogram.Snapshot getLatency() {
+        return getLatency;
+    }
+
+    // CacheLoader.load的延迟(纳秒)
+    public LatencyHistogram.Snapshot loadLatency() {
+        return loadLatency;
+    }
+
+    // 缓存项从写入到被移除经过的时间(纳秒)
+    public LatencyHistogram.Snapshot timeInCache() {
+        return timeInCache;
+    }
+
+    // 按原因统计的移除次数，包括显式清除和替换
+    public ImmutableMap<RemovalCause, Long> removalCounts() {
+        return removalCounts;
+    }
+
+    // 最近一个滑动窗口内的命中率，窗口内没有请求时为1.0
+    public double windowHitRate() {
+        return windowHitRate;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("stats", stats)
+                .add("windowHitRate", String.format("%.4f", windowHitRate))
+                .add("removalCounts", removalCounts)
+                .add("getLatency", getLatency)
+                .add("loadLatency", loadLatency)
+                .add("timeInCache", timeInCache)
+                .toString();
+    }
+}
@@ -0,0 +1,41 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存维护任务的调度器
+ * 使用CacheBuilder构建的缓存只会在读写时顺带做清理工作，给缓存配置一个调度器后，过期的缓存项在没有读写时也能被及时清理
+ **/
+public interface CacheScheduler {
+
+    /**
+     * 在delay之后执行一次task
+     * 无法再接受任务时(例如线程池已经关闭)抛出RejectedExecutionException，缓存会改为在读写时清理
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * 不做任何调度，只在读写时清理
+     */
+    static CacheScheduler disabledScheduler() {
+        return new CacheScheduler() {
+            public void schedule(Runnable task, long delay, TimeUnit unit) {
+            }
+        };
+    }
+
+    /**
+     * 使用ScheduledExecutorService调度，多个缓存可以共享同一个线程
+     */
+    static CacheScheduler forScheduledExecutorService(final ScheduledExecutorService executor) {
+        Preconditions.checkNotNull(executor);
+        return new CacheScheduler() {
+            public void schedule(Runnable task, long delay, TimeUnit unit) {
+                executor.schedule(task, delay, unit);
+            }
+        };
+    }
+}
@@ -0,0 +1,200 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 缓存快照
+ * 把缓存内容保存到本地文件，重启后用快照预热新缓存，避免冷启动时大量请求打到CacheLoader
+ *
+ * 文件格式(大端)：
+ *  文件头：magic(int) version(int) 保存时间毫秒数(long) 缓存项数(int)
+ *  缓存项：剩余存活纳秒数(long, -1表示未知) 键长度(int) 键 值长度(int) 值
+ * 缓存项按最近使用程度从高到低排列，恢复时限制条数就能只恢复最热的部分
+ *  ExpiringCache：按剩余存活时间排序，并记录剩余时间，恢复时扣除停机的时间
+ *  其他Cache：asMap()不提供访问顺序和过期时间，按asMap()的迭代顺序保存，恢复后使用新缓存自己的过期策略
+ **/
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x47435348;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    // 剩余存活时间、键长度、值长度
+    private static final int ENTRY_OVERHEAD = 8 + 4 + 4;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * 保存快照，先写临时文件再改名，保存过程中崩溃不会留下损坏的快照
+     *
+     * @return 保存的缓存项数
+     */
+    public static <K, V> int save(Cache<K, V> cache, File file,
+                                  Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        List<Long> remaining = new ArrayList<>();
+        if (cache instanceof ExpiringCache) {
+            for (TimerWheel.Node<K, V> node : ((ExpiringCache<K, V>) cache).entriesByRemainingTime()) {
+                keys.add(node.key);
+                values.add(node.value);
+                remaining.add(node.deadline);
+            }
+        } else {
+            for (Map.Entry<K, V> entry : cache.asMap().entrySet()) {
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+                remaining.add(-1L);
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.asByteSink(temp).openBufferedStream())) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keySerializer.serialize(keys.get(i));
+                byte[] value = valueSerializer.serialize(values.get(i));
+                out.writeLong(remaining.get(i));
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        Files.move(temp, file);
+        return keys.size();
+    }
+
+    /**
+     * 用快照预热缓存，文件通过内存映射读取，缓存项在decoders中并行反序列化
+     * 已经过期的缓存项会被跳过，恢复顺序保证快照中越热的缓存项越晚写入
+     *
+     * @param maxEntries 最多恢复的缓存项数
+     * @return 恢复的缓存项数
+     */
+    public static <K, V> int restore(Cache<K, V> cache, File file, final Serializer<K> keySerializer,
+                                     final Serializer<V> valueSerializer, int maxEntries,
+                                     ExecutorService decoders) throws IOException {
+        Preconditions.checkArgument(maxEntries >= 0, "maxEntries cannot be negative: %s", maxEntries);
+        final MappedByteBuffer buffer = Files.map(file);
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a cache snapshot: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + version + ": " + file);
+        }
+        long elapsedNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - buffer.getLong()));
+        int count = buffer.getInt();
+        // 每个缓存项至少有ENTRY_OVERHEAD字节，条数与文件长度不符说明文件被截断或损坏
+        if (count < 0 || count > buffer.remaining() / ENTRY_OVERHEAD) {
+            throw corrupt(file, "entry count " + count);
+        }
+
+        // 先顺序扫描一遍，只记录每个缓存项的位置，同时检查每个长度都没有超出文件
+        int limit = Math.min(count, maxEntries);
+        final int[] offsets = new int[limit];
+        final long[] remaining = new long[limit];
+        int selected = 0;
+        for (int i = 0; i < count && selected < limit; i++) {
+            if (buffer.remaining() < ENTRY_OVERHEAD) {
+                throw corrupt(file, "truncated entry " + i);
+            }
+            long remainingNanos = buffer.getLong();
+            int offset = buffer.position();
+            int keyLength = buffer.getInt();
+            skip(buffer, keyLength, file);
+            if (buffer.remaining() < 4) {
+                throw corrupt(file, "truncated entry " + i);
+            }
+            int valueLength = buffer.getInt();
+            skip(buffer, valueLength, file);
+            if (remainingNanos >= 0 && remainingNanos <= elapsedNanos) {
+                continue;
+            }
+            offsets[selected] = offset;
+            remaining[selected] = remainingNanos < 0 ? -1 : remainingNanos - elapsedNanos;
+            selected++;
+        }
+
+        // 分段并行反序列化
+        final Object[] keys = new Object[selected];
+        final Object[] values = new Object[selected];
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int chunk = Math.max(1024, (selected + parallelism - 1) / parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start = 0; start < selected; start += chunk) {
+            final int from = start;
+            final int to = Math.min(selected, start + chunk);
+            futures.add(decoders.submit(new Runnable() {
+                public void run() {
+                    ByteBuffer local = buffer.duplicate();
+                    for (int i = from; i < to; i++) {
+                        local.limit(local.capacity());
+                        local.position(offsets[i]);
+                        int keyLength = local.getInt();
+                        keys[i] = keySerializer.deserialize(slice(local, keyLength));
+                        local.limit(local.capacity());
+                        int valueLength = local.getInt();
+                        values[i] = valueSerializer.deserialize(slice(local, valueLength));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to decode cache snapshot: " + file, e.getCause());
+            }
+        }
+
+        for (int i = selected - 1; i >= 0; i--) {
+            @SuppressWarnings("unchecked")
+            K key = (K) keys[i];
+            @SuppressWarnings("unchecked")
+            V value = (V) values[i];
+            if (cache instanceof ExpiringCache && remaining[i] >= 0) {
+                ((ExpiringCache<K, V>) cache).putRestored(key, value, remaining[i]);
+            } else {
+                cache.put(key, value);
+            }
+        }
+        return selected;
+    }
+
+    // 跳过文件中记录的length个字节，length为负数或超出文件时视为损坏
+    private static void skip(ByteBuffer buffer, int length, File file) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw corrupt(file, "length " + length + " at offset " + (buffer.position() - 4));
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static IOException corrupt(File file, String detail) {
+        return new IOException("Corrupt cache snapshot (" + detail + "): " + file);
+    }
+
+    // 从当前位置切出length个字节，并把buffer的位置移到其后
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        int end = buffer.position() + length;
+        buffer.limit(end);
+        ByteBuffer slice = buffer.slice();
+        buffer.position(end);
+        return slice;
+    }
+}
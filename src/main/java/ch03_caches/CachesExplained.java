@@ -2,12 +2,19 @@ package ch03_caches;
 
 
 import com.google.common.cache.*;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
@@ -19,6 +26,11 @@ import java.util.concurrent.*;
  * @create 2018-04-24 下午11:27
  **/
 public class CachesExplained {
+
+    // 所有缓存共享的刷新线程池: 2个线程, 最多排队1000个刷新, 单次刷新最多10秒
+    private static final RefreshExecutor REFRESH_EXECUTOR =
+            new RefreshExecutor("cache-refresh", 2, 1000, 10, TimeUnit.SECONDS);
+
     public static void main(String args[]) {
         /**
          * CacheLoader
@@ -52,6 +64,18 @@ public class CachesExplained {
             // {20=6765, 21=10946, 22=17711}
             System.out.println(immutableMap);
 
+            // 键和值都是int时，IntLoadingCache直接使用int数组存储，查找时不需要装箱
+            IntLoadingCache intCache = IntLoadingCache.newBuilder()
+                    .maximumSize(1000)
+                    .expireAfterAccess(10, TimeUnit.MINUTES)
+                    .build(new IntLoadingCache.IntCacheLoader() {
+                        public int load(int key) {
+                            return fib(key);
+                        }
+                    });
+            // [6765, 10946, 17711]
+            System.out.println(Arrays.toString(intCache.getAll(new int[]{20, 21, 22})));
+
             // 如果批量的加载比多个单独加载更高效，可以重载CacheLoader.loadAll来利用这一点, getAll(Iterable)的性能也会相应提升
             LoadingCache<Integer, Integer> cachedFib2 = CacheBuilder.newBuilder()
                     .maximumSize(1000)
@@ -68,6 +92,70 @@ public class CachesExplained {
                                 }
                             });
 
+            // 多个线程同时未命中不同的键时，BatchingCacheLoader把10ms内的单键加载合并为一次loadAll
+            ScheduledExecutorService batchScheduler = Executors.newSingleThreadScheduledExecutor();
+            final BatchingCacheLoader<Integer, Integer> batchingLoader = new BatchingCacheLoader<>(
+                    new CacheLoader<Integer, Integer>() {
+                        @Override
+                        public Integer load(Integer key) {
+                            return fib(key);
+                        }
+
+                        @Override
+                        public Map<Integer, Integer> loadAll(Iterable<? extends Integer> keys) {
+                            Map<Integer, Integer> result = new HashMap<>();
+                            for (Integer key : keys) {
+                                result.put(key, fib(key));
+                            }
+                            return result;
+                        }
+                    }, 100, 10, TimeUnit.MILLISECONDS, batchScheduler);
+            final LoadingCache<Integer, Integer> cachedFib3 = CacheBuilder.newBuilder()
+                    .maximumSize(1000)
+                    .build(batchingLoader);
+            ExecutorService callers = Executors.newFixedThreadPool(8);
+            for (int i = 0; i < 8; i++) {
+                final int key = 10 + i;
+                callers.execute(new Runnable() {
+                    public void run() {
+                        cachedFib3.getUnchecked(key);
+                    }
+                });
+            }
+            callers.shutdown();
+            try {
+                callers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchScheduler.shutdown();
+            // requests: 8, batches: 1
+            System.out.println(String.format("requests: %d, batches: %d",
+                    batchingLoader.requestCount(), batchingLoader.batchCount()));
+
+            // fib(x)的递归绕过了缓存，cachedFib.get(n)不会复用子问题的结果
+            // MemoizingCache让递归的每一层都通过同一个缓存读取和保存结果，计算fib(n)只需要O(n)次加法
+            // n很大时用BOTTOM_UP策略从0开始依次计算，不会栈溢出
+            MemoizingCache<Integer, BigInteger> memoFib = MemoizingCache.create(
+                    CacheBuilder.newBuilder().maximumSize(10000),
+                    new RecursiveCacheLoader.BottomUp<Integer, BigInteger>() {
+                        public BigInteger compute(Integer n, Resolver<Integer, BigInteger> resolver) {
+                            if (n < 2) {
+                                return BigInteger.valueOf(n);
+                            }
+                            return resolver.get(n - 1).add(resolver.get(n - 2));
+                        }
+
+                        public Iterable<Integer> bottomUpOrder(Integer n) {
+                            return ContiguousSet.create(Range.closedOpen(0, n), DiscreteDomain.integers());
+                        }
+                    }, MemoizingCache.Strategy.BOTTOM_UP);
+            // 2880067194370816120
+            System.out.println(memoFib.get(90));
+            // 3471 bits, 5001 computations
+            System.out.println(String.format("%d bits, %d computations",
+                    memoFib.get(5000).bitLength(), memoFib.computeCount()));
+
         } catch (ExecutionException e) {
             e.printStackTrace();
         }
@@ -95,6 +183,47 @@ public class CachesExplained {
             e.printStackTrace();
         }
 
+        // 缓存项过期后，get(K, Callable)会让所有读线程等待重新计算
+        // StaleWhileRevalidateCache在宽限期内直接返回旧值，只由一个后台任务刷新，加载失败的结果缓存一小段时间
+        StaleWhileRevalidateCache<Integer, Integer> swr = StaleWhileRevalidateCache.newBuilder()
+                .freshFor(50, TimeUnit.MILLISECONDS)
+                .staleFor(10, TimeUnit.SECONDS)
+                .negativeTtl(1, TimeUnit.SECONDS)
+                .build();
+        Callable<Integer> slowFib = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                TimeUnit.MILLISECONDS.sleep(200);
+                return fib(20);
+            }
+        };
+        Callable<Integer> failing = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                throw new IOException("backend unavailable");
+            }
+        };
+        try {
+            swr.put(20, 0);
+            TimeUnit.MILLISECONDS.sleep(100);
+            // 0 0
+            System.out.println(swr.get(20, slowFib) + " " + swr.get(20, slowFib));
+            TimeUnit.MILLISECONDS.sleep(300);
+            // 6765
+            System.out.println(swr.get(20, slowFib));
+            for (int i = 0; i < 2; i++) {
+                try {
+                    swr.get(30, failing);
+                } catch (ExecutionException e) {
+                    // java.io.IOException: backend unavailable
+                    System.out.println(e.getCause());
+                }
+            }
+            // stale hits: 3, refreshes: 1, negative hits: 1
+            System.out.println(String.format("stale hits: %d, refreshes: %d, negative hits: %d",
+                    swr.staleHitCount(), swr.refreshCount(), swr.negativeHitCount()));
+        } catch (ExecutionException | InterruptedException e) {
+            e.printStackTrace();
+        }
+
 
         /**
          * 显式插入
@@ -128,6 +257,55 @@ public class CachesExplained {
                             }
                         });
 
+        // 上面的Weigher只是示例，权重与内存占用无关
+        // SizeEstimatingWeigher按键和值估算的内存占用计算权重，maximumWeight就可以按字节设置
+        Cache<String, String> bytesBounded = CacheBuilder.newBuilder()
+                .maximumWeight(1 << 20)
+                .weigher(SizeEstimatingWeigher.create())
+                .build();
+        bytesBounded.put("hello", "world");
+        // 结果取决于对象布局，64位HotSpot开启压缩指针时：Java 8为184，Java 9以上(紧凑字符串)为168
+        System.out.println(SizeEstimatingWeigher.create().weigh("hello", "world"));
+
+        // 两级缓存：堆内只保留100个缓存项，按容量回收的缓存项序列化到1MB的堆外存储，再次访问时自动放回堆内
+        LoadingCache<Integer, Integer> tiered = TieredCache.create(
+                CacheBuilder.newBuilder().maximumSize(100), 1 << 20, Serializer.ints(),
+                new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key % 30);
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            tiered.getUnchecked(i);
+        }
+        tiered.getUnchecked(0);
+        // TieredCacheStats{heapHitCount=0, offHeapHitCount=1, offHeapMissCount=1000, offHeapEvictionCount=0, offHeapSize=900, offHeapBytes=3600}
+        System.out.println(((TieredCache<Integer, Integer>) tiered).tieredStats());
+
+        // maximumSize的回收近似LRU，扫描型访问会把热点数据挤出缓存
+        // TinyLfuLoadingCache在主区前加了一个频率过滤器，只有比淘汰项更常被访问的缓存项才会被放进主区
+        LoadingCache<Integer, Integer> tinyLfu = TinyLfuLoadingCache.create(1000,
+                new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key);
+                    }
+                });
+        // 6765
+        System.out.println(tinyLfu.getUnchecked(20));
+
+        // 命中时CacheBuilder构建的缓存要在段锁内调整访问顺序
+        // BufferedReadCache命中时只把访问记录追加到有损的读缓冲区，由后台任务批量更新LRU顺序，读操作不加锁
+        LoadingCache<Integer, Integer> buffered = BufferedReadCache.<Integer, Integer>newBuilder()
+                .maximumSize(1000)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key);
+                    }
+                });
+        // 6765
+        System.out.println(buffered.getUnchecked(20));
+
         /**
          * 定时回收
           */
@@ -141,6 +319,31 @@ public class CachesExplained {
                 .expireAfterWrite(100, TimeUnit.SECONDS)
                 .build();
 
+        // 为每个缓存项单独计算过期时间，创建、更新、读取时都可以调整
+        // 例如值越大，重新计算的代价越高，存活时间越长
+        LoadingCache<Integer, Integer> variable = ExpiringCache.<Integer, Integer>newBuilder()
+                .expireAfter(new Expiry<Integer, Integer>() {
+                    public long expireAfterCreate(Integer key, Integer value, long currentTime) {
+                        return TimeUnit.SECONDS.toNanos(key);
+                    }
+
+                    public long expireAfterUpdate(Integer key, Integer value, long currentTime, long currentDuration) {
+                        return TimeUnit.SECONDS.toNanos(key);
+                    }
+
+                    public long expireAfterRead(Integer key, Integer value, long currentTime, long currentDuration) {
+                        // 读取不改变过期时间
+                        return currentDuration;
+                    }
+                })
+                .build(new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key);
+                    }
+                });
+        // 6765, 20秒后过期
+        System.out.println(variable.getUnchecked(20));
+
 
         /**
          * 基于引用的回收
@@ -157,6 +360,31 @@ public class CachesExplained {
         // 软引用只有在响应内存需要时，才按照全局最近最少使用的顺序回收。使用软引用值的缓存同样用==而不是equals比较值
         CacheBuilder.newBuilder().softValues().build();
 
+        // MemoryAwareCache按权重限制容量，老年代在GC后超过阈值时主动把容量减半，并按LRU顺序回收，而不是等GC清除软引用
+        MemoryPressureMonitor pressureMonitor = MemoryPressureMonitor.forTenuredPool(0.8);
+        MemoryAwareCache<Integer, Integer> memoryAware = MemoryAwareCache.<Integer, Integer>newBuilder()
+                .maximumWeight(1000)
+                .weigher(new Weigher<Integer, Integer>() {
+                    public int weigh(Integer key, Integer value) {
+                        return 1;
+                    }
+                })
+                .memoryPressureMonitor(pressureMonitor)
+                .build(new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key % 30);
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            memoryAware.getUnchecked(i);
+        }
+        // 模拟一次内存压力通知
+        pressureMonitor.notifyListeners();
+        // capacity: 500, size: 500, evicted: 500
+        System.out.println(String.format("capacity: %d, size: %d, evicted: %d",
+                memoryAware.capacity(), memoryAware.size(), memoryAware.pressureEvictionCount()));
+        pressureMonitor.close();
+
 
 
         /**
@@ -201,7 +429,10 @@ public class CachesExplained {
 
         // 把监听器装饰为异步操作
         // 避免代价高昂的监听器方法在同步模式下拖慢正常的缓存请求
-        RemovalListener<Integer, Integer> async = RemovalListeners.asynchronous(removalListener, Executors.newSingleThreadExecutor());
+        // RemovalListeners.asynchronous()的任务队列是无界的，大量移除时通知会不断积压
+        // BoundedAsyncRemovalListener使用有界的环形缓冲区并成批送达，缓冲区满时按OverflowPolicy处理
+        BoundedAsyncRemovalListener<Integer, Integer> async = BoundedAsyncRemovalListener.of(removalListener,
+                Executors.newSingleThreadExecutor(), 1024, 64, BoundedAsyncRemovalListener.OverflowPolicy.RUN_INLINE);
 
         listenCache = CacheBuilder.newBuilder()
                 .expireAfterAccess(2, TimeUnit.SECONDS)
@@ -211,6 +442,14 @@ public class CachesExplained {
         listenCache.put(1, fib(1));
         listenCache.put(2, fib(2));
         listenCache.invalidateAll();
+        try {
+            TimeUnit.MILLISECONDS.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // pending: 0, delivered: 2, batches: 1
+        System.out.println(String.format("pending: %d, delivered: %d, batches: %d",
+                async.queueDepth(), async.deliveredCount(), async.batchCount()));
 
 
         // 使用CacheBuilder构建的缓存不会"自动"执行清理和回收工作，只会在写操作时顺带做少量的维护工作
@@ -218,6 +457,23 @@ public class CachesExplained {
         // 如果你的缓存只会偶尔有写操作，而你又不想清理工作阻碍了读操作，那么可以创建自己的维护线程，以固定的时间间隔调用Cache.cleanUp()
         listenCache.cleanUp();
 
+        // ExpiringCache用分层时间轮管理过期时间，清理时只处理到期的缓存项
+        // 配置CacheScheduler后，即使没有读写，过期的缓存项也会在到期时被回收并通知RemovalListener
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor();
+        Cache<Integer, Integer> wheelCache = ExpiringCache.<Integer, Integer>newBuilder()
+                .expireAfterWrite(100, TimeUnit.MILLISECONDS)
+                .removalListener(removalListener)
+                .scheduler(CacheScheduler.forScheduledExecutorService(cleaner))
+                .build();
+        wheelCache.put(3, fib(3));
+        try {
+            // key: 3, value: 2 be removed . Cause: EXPIRED
+            TimeUnit.MILLISECONDS.sleep(300);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cleaner.shutdown();
+
 
 
         /**
@@ -243,17 +499,27 @@ public class CachesExplained {
                                     return Futures.immediateFuture(prev);
                                 } else {
                                     // asynchronous!
-                                    ListenableFutureTask<Integer> task = ListenableFutureTask.create(new Callable<Integer>() {
+                                    // 提交到共享的有界刷新线程池，这个加载器同一个键的重复刷新会被合并
+                                    return REFRESH_EXECUTOR.refresh(this, key, prev, new Callable<Integer>() {
                                         public Integer call() {
                                             return fib(key);
                                         }
                                     });
-                                    Executors.newSingleThreadExecutor().execute(task);
-                                    return task;
                                 }
                             }
                         });
 
+        // 也可以直接把同步的CacheLoader装饰为使用共享线程池异步刷新的CacheLoader
+        LoadingCache<Integer, Integer> reload2 = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .build(REFRESH_EXECUTOR.asyncReloading(loader));
+
+        reload2.getUnchecked(20);
+        reload2.refresh(20);
+        // RefreshExecutor{started=1, coalesced=0, rejected=0, failed=0}
+        System.out.println(REFRESH_EXECUTOR);
+
 
         /**
          * 其他特性
@@ -278,6 +544,21 @@ public class CachesExplained {
         // 缓存项被回收的总数，不包括显式清除
         stats.evictionCount();
 
+        // CacheStats只有累计值和平均值，InstrumentedCache还提供延迟直方图、按原因的移除次数和滑动窗口命中率
+        InstrumentedCache<Integer, Integer> instrumented = InstrumentedCache.create(
+                CacheBuilder.newBuilder().maximumSize(1000),
+                new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return fib(key);
+                    }
+                });
+        instrumented.getUnchecked(20);
+        instrumented.invalidate(20);
+        CacheMetrics metrics = instrumented.metrics();
+        // p99 load latency: 55295ns, explicit removals: 1
+        System.out.println(String.format("p99 load latency: %dns, explicit removals: %d",
+                metrics.loadLatency().percentile(99), metrics.removalCounts().get(RemovalCause.EXPLICIT)));
+
 
         /**
          * asMap视图
@@ -301,6 +582,62 @@ public class CachesExplained {
         // null
         System.out.println(one);
 
+
+        /**
+         * 快照与预热
+         * 把asMap()的内容保存到本地文件，重启后用快照预热新缓存，避免冷启动时大量请求打到CacheLoader
+         */
+        try {
+            File snapshot = File.createTempFile("cachedFib", ".snapshot");
+            CacheSnapshot.save(cachedFib, snapshot, Serializer.ints(), Serializer.ints());
+
+            LoadingCache<Integer, Integer> restarted = CacheBuilder.newBuilder()
+                    .maximumSize(1000)
+                    .build(new CacheLoader<Integer, Integer>() {
+                        public Integer load(Integer key) {
+                            return fib(key);
+                        }
+                    });
+            ExecutorService decoders = Executors.newFixedThreadPool(2);
+            CacheSnapshot.restore(restarted, snapshot, Serializer.ints(), Serializer.ints(), 1000, decoders);
+            decoders.shutdown();
+            snapshot.delete();
+            // {20=6765, 22=17711, 21=10946}
+            System.out.println(restarted.asMap());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+
+        /**
+         * 近缓存
+         * 在远程存储前面加一层本地缓存，远程存储的写操作通过失效消息成批通知本地缓存
+         */
+        ScheduledExecutorService invalidationScheduler = Executors.newSingleThreadScheduledExecutor();
+        InMemoryRemoteStore<Integer, Integer> remote =
+                new InMemoryRemoteStore<>(1, TimeUnit.MILLISECONDS, 64, 10, TimeUnit.MILLISECONDS, invalidationScheduler);
+        NearCache<Integer, Integer> near = NearCache.create(CacheBuilder.newBuilder().maximumSize(1000), remote);
+        for (int i = 20; i < 25; i++) {
+            remote.put(i, fib(i));
+        }
+        try {
+            // getAll在一次往返中加载所有未命中的键
+            near.getAll(Arrays.asList(20, 21, 22, 23, 24));
+            for (int i = 0; i < 10; i++) {
+                near.get(20);
+            }
+            // 其他客户端修改了远程存储，失效消息处理后不会再读到旧值
+            remote.put(20, 0);
+            remote.flushInvalidations();
+            // 0
+            System.out.println(near.get(20));
+            // round trips: 2, saved: 14
+            System.out.println(String.format("round trips: %d, saved: %d", near.roundTripCount(), near.roundTripsSaved()));
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        invalidationScheduler.shutdown();
+
     }
 
 
@@ -0,0 +1,441 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 基于时间轮过期的缓存
+ *
+ * CacheBuilder构建的缓存在写操作时顺带清理过期缓存项，读多写少的缓存需要自己定时调用Cache.cleanUp()
+ * ExpiringCache用TimerWheel记录每个缓存项的过期时间：
+ *  每次读写只需要O(1)地调整缓存项在时间轮中的位置，清理时只处理到期的格子，不需要扫描所有缓存项
+ *  配置CacheScheduler后，缓存会在下一个缓存项到期时自动清理，RemovalListener能及时收到EXPIRED通知
+ *  调度器拒绝任务时不影响读写操作本身，缓存退回到在每次读写后清理到期的缓存项
+ **/
+public class ExpiringCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final Logger logger = Logger.getLogger(ExpiringCache.class.getName());
+
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final Expiry<K, V> expiry;
+    private final Ticker ticker;
+    private final long origin;
+    private final RemovalListener<K, V> removalListener;
+    private final CacheScheduler scheduler;
+    private final CacheLoader<? super K, V> loader;
+
+    private final Map<K, TimerWheel.Node<K, V>> data = Maps.newHashMap();
+    private final TimerWheel<K, V> timerWheel;
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    // 等待发送的移除通知，在锁外发送
+    private final Queue<RemovalNotification<K, V>> pendingNotifications = new ConcurrentLinkedQueue<>();
+    // 已经安排的下一次清理时间，没有安排时为Long.MAX_VALUE
+    private long nextCleanUp = Long.MAX_VALUE;
+    // 调度器拒绝过清理任务(例如线程池已经关闭)，之后不再调度，改为每次读写后清理到期的缓存项
+    private volatile boolean scheduleRejected;
+
+    @SuppressWarnings("unchecked")
+    private ExpiringCache(Builder<K, V> builder, CacheLoader<? super K, V> loader) {
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.expiry = (Expiry<K, V>) builder.expiry;
+        this.ticker = builder.ticker;
+        this.origin = ticker.read();
+        this.removalListener = (RemovalListener<K, V>) builder.removalListener;
+        this.scheduler = builder.scheduler;
+        this.loader = loader;
+        this.timerWheel = new TimerWheel<>(0L);
+    }
+
+    public static <K, V> Builder<K, V> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * ExpiringCache的构建器，用法与CacheBuilder类似
+     */
+    public static class Builder<K, V> {
+        private long expireAfterWriteNanos = -1;
+        private long expireAfterAccessNanos = -1;
+        private Expiry<? super K, ? super V> expiry;
+        private Ticker ticker = Ticker.systemTicker();
+        private RemovalListener<? super K, ? super V> removalListener;
+        private CacheScheduler scheduler = CacheScheduler.disabledScheduler();
+
+        private Builder() {
+        }
+
+        // 缓存项在给定时间内没有被写访问（创建或覆盖），则回收
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // 缓存项在给定时间内没有被读/写访问，则回收
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // 由Expiry为每个缓存项单独计算过期时间，不能与expireAfterWrite/expireAfterAccess同时使用
+        public Builder<K, V> expireAfter(Expiry<? super K, ? super V> expiry) {
+            this.expiry = Preconditions.checkNotNull(expiry);
+            return this;
+        }
+
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Preconditions.checkNotNull(ticker);
+            return this;
+        }
+
+        public Builder<K, V> removalListener(RemovalListener<? super K, ? super V> listener) {
+            this.removalListener = Preconditions.checkNotNull(listener);
+            return this;
+        }
+
+        // 到期时主动清理缓存项的调度器
+        public Builder<K, V> scheduler(CacheScheduler scheduler) {
+            this.scheduler = Preconditions.checkNotNull(scheduler);
+            return this;
+        }
+
+        public Cache<K, V> build() {
+            checkExpiration();
+            return new ExpiringCache<>(this, null);
+        }
+
+        public LoadingCache<K, V> build(CacheLoader<? super K, V> loader) {
+            checkExpiration();
+            return new ExpiringCache<>(this, Preconditions.checkNotNull(loader));
+        }
+
+        private void checkExpiration() {
+            boolean fixed = expireAfterWriteNanos >= 0 || expireAfterAccessNanos >= 0;
+            Preconditions.checkState(fixed || expiry != null,
+                    "expireAfterWrite, expireAfterAccess or expireAfter must be set");
+            Preconditions.checkState(!(fixed && expiry != null),
+                    "expireAfter cannot be combined with expireAfterWrite or expireAfterAccess");
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        V value;
+        synchronized (this) {
+            long now = now();
+            TimerWheel.Node<K, V> node = data.get(key);
+            if (node == null) {
+                value = null;
+            } else if (node.deadline - now <= 0) {
+                // 已经过期但还没被清理的缓存项
+                removeExpired(node);
+                value = null;
+            } else {
+                if (expiry != null || expireAfterAccessNanos >= 0) {
+                    node.deadline = deadlineOnRead(node, now);
+                    timerWheel.schedule(node);
+                }
+                value = node.value;
+            }
+        }
+        if (value == null) {
+            statsCounter.recordMisses(1);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        afterOperation();
+        return value;
+    }
+
+    @Override
+    public V get(final K key) throws ExecutionException {
+        Preconditions.checkState(loader != null, "ExpiringCache was built without a CacheLoader");
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            return getLoaded(existing);
+        }
+
+        long start = System.nanoTime();
+        try {
+            task.run();
+            value = getLoaded(task);
+            if (value == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, value);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            return value;
+        } catch (RuntimeException | ExecutionException | Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw e;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    // 按Guava Cache的约定包装加载过程中的异常
+    private V getLoaded(FutureTask<V> task) throws ExecutionException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw new ExecutionError((Error) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw new UncheckedExecutionException(cause);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        synchronized (this) {
+            long now = now();
+            TimerWheel.Node<K, V> node = data.get(key);
+            if (node == null) {
+                node = new TimerWheel.Node<>(key, value);
+                data.put(key, node);
+                node.deadline = deadlineOnCreate(node, now);
+            } else {
+                RemovalCause cause = (node.deadline - now <= 0) ? RemovalCause.EXPIRED : RemovalCause.REPLACED;
+                pendingNotifications.add(RemovalNotification.create(key, node.value, cause));
+                node.value = value;
+                node.deadline = (cause == RemovalCause.EXPIRED)
+                        ? deadlineOnCreate(node, now)
+                        : deadlineOnUpdate(node, now);
+            }
+            timerWheel.schedule(node);
+        }
+        afterOperation();
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        synchronized (this) {
+            TimerWheel.Node<K, V> node = data.remove(key);
+            if (node != null) {
+                timerWheel.deschedule(node);
+                pendingNotifications.add(RemovalNotification.create(node.key, node.value, RemovalCause.EXPLICIT));
+            }
+        }
+        afterOperation();
+    }
+
+    @Override
+    public void invalidateAll() {
+        synchronized (this) {
+            for (TimerWheel.Node<K, V> node : data.values()) {
+                timerWheel.deschedule(node);
+                pendingNotifications.add(RemovalNotification.create(node.key, node.value, RemovalCause.EXPLICIT));
+            }
+            data.clear();
+        }
+        afterOperation();
+    }
+
+    /**
+     * 写入一个从快照恢复的缓存项，过期时间不会晚于快照中记录的剩余存活时间
+     */
+    void putRestored(K key, V value, long remainingNanos) {
+        put(key, value);
+        synchronized (this) {
+            TimerWheel.Node<K, V> node = data.get(key);
+            if (node != null && node.value == value) {
+                node.deadline = Math.min(node.deadline, LongMath.saturatedAdd(now(), remainingNanos));
+                timerWheel.schedule(node);
+            }
+        }
+    }
+
+    /**
+     * 按剩余存活时间从长到短返回所有未过期的缓存项，用于CacheSnapshot
+     * 返回的是副本，deadline字段为剩余的纳秒数
+     * 对于expireAfterAccess，剩余时间越长说明最近越常被访问
+     */
+    synchronized List<TimerWheel.Node<K, V>> entriesByRemainingTime() {
+        long now = now();
+        List<TimerWheel.Node<K, V>> entries = new ArrayList<>(data.size());
+        for (TimerWheel.Node<K, V> node : data.values()) {
+            if (node.deadline - now > 0) {
+                TimerWheel.Node<K, V> copy = new TimerWheel.Node<>(node.key, node.value);
+                copy.deadline = node.deadline - now;
+                entries.add(copy);
+            }
+        }
+        Collections.sort(entries, new Comparator<TimerWheel.Node<K, V>>() {
+            public int compare(TimerWheel.Node<K, V> left, TimerWheel.Node<K, V> right) {
+                return Long.compare(right.deadline, left.deadline);
+            }
+        });
+        return entries;
+    }
+
+    @Override
+    public synchronized long size() {
+        return data.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    /**
+     * 推进时间轮，回收所有到期的缓存项
+     */
+    @Override
+    public void cleanUp() {
+        expireEntries();
+        afterOperation();
+    }
+
+    private synchronized void expireEntries() {
+        nextCleanUp = Long.MAX_VALUE;
+        timerWheel.advance(now(), new TimerWheel.ExpirationHandler<K, V>() {
+            public void expire(TimerWheel.Node<K, V> node) {
+                removeExpired(node);
+            }
+        });
+    }
+
+    // 调用方持有锁
+    private void removeExpired(TimerWheel.Node<K, V> node) {
+        timerWheel.deschedule(node);
+        data.remove(node.key);
+        statsCounter.recordEviction();
+        pendingNotifications.add(RemovalNotification.create(node.key, node.value, RemovalCause.EXPIRED));
+    }
+
+    // 在锁外发送移除通知，并按时间轮中最早的到期时间安排下一次清理
+    private void afterOperation() {
+        if (scheduleRejected) {
+            expireEntries();
+        }
+        RemovalNotification<K, V> notification;
+        while ((notification = pendingNotifications.poll()) != null) {
+            if (removalListener != null) {
+                try {
+                    removalListener.onRemoval(notification);
+                } catch (RuntimeException e) {
+                    // 与Guava Cache一样，监听器抛出的异常只记录日志，不影响缓存操作
+                    logger.log(Level.WARNING, "Exception thrown by removal listener", e);
+                }
+            }
+        }
+        scheduleCleanUp();
+    }
+
+    private synchronized void scheduleCleanUp() {
+        if (scheduleRejected) {
+            return;
+        }
+        long delay = timerWheel.getExpirationDelay();
+        if (delay == Long.MAX_VALUE) {
+            return;
+        }
+        long fireTime = now() + delay;
+        if (fireTime - nextCleanUp >= 0) {
+            return;
+        }
+        nextCleanUp = fireTime;
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    cleanUp();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // 这次读写已经完成，不能因为调度失败而抛出异常
+            nextCleanUp = Long.MAX_VALUE;
+            scheduleRejected = true;
+            logger.log(Level.WARNING, "Cache scheduler rejected the clean-up task, cleaning up on reads and writes", e);
+        }
+    }
+
+    private long deadlineOnCreate(TimerWheel.Node<K, V> node, long now) {
+        if (expiry != null) {
+            return LongMath.saturatedAdd(now, expiry.expireAfterCreate(node.key, node.value, now));
+        }
+        return deadlineOnWrite(node, now);
+    }
+
+    private long deadlineOnUpdate(TimerWheel.Node<K, V> node, long now) {
+        if (expiry != null) {
+            return LongMath.saturatedAdd(now, expiry.expireAfterUpdate(node.key, node.value, now, node.deadline - now));
+        }
+        return deadlineOnWrite(node, now);
+    }
+
+    private long deadlineOnRead(TimerWheel.Node<K, V> node, long now) {
+        if (expiry != null) {
+            return LongMath.saturatedAdd(now, expiry.expireAfterRead(node.key, node.value, now, node.deadline - now));
+        }
+        long deadline = now + expireAfterAccessNanos;
+        if (expireAfterWriteNanos >= 0) {
+            deadline = Math.min(deadline, node.writeTime + expireAfterWriteNanos);
+        }
+        return deadline;
+    }
+
+    // 同时设置expireAfterWrite和expireAfterAccess时，取先到的那个
+    private long deadlineOnWrite(TimerWheel.Node<K, V> node, long now) {
+        node.writeTime = now;
+        long deadline = Long.MAX_VALUE;
+        if (expireAfterWriteNanos >= 0) {
+            deadline = now + expireAfterWriteNanos;
+        }
+        if (expireAfterAccessNanos >= 0) {
+            deadline = Math.min(deadline, now + expireAfterAccessNanos);
+        }
+        return deadline;
+    }
+
+    // 相对于缓存创建时刻的纳秒数，保证时间轮使用的时间不为负
+    private long now() {
+        return ticker.read() - origin;
+    }
+}
@@ -0,0 +1,31 @@
+package ch03_caches;
+
+/**
+ * 按缓存项计算过期时间的策略
+ * expireAfterWrite/expireAfterAccess对整个缓存只能设置一个固定时长，而很多值本身就带有有效期(例如上游的Cache-Control)
+ * 实现Expiry后，ExpiringCache会在缓存项创建、更新、读取时分别询问它的剩余存活时间
+ *
+ * 所有时间的单位都是纳秒，currentTime是缓存内部时钟的当前时间，只适合用来计算差值
+ * 返回currentDuration表示不改变过期时间，返回0表示立即过期，返回Long.MAX_VALUE表示永不过期
+ **/
+public interface Expiry<K, V> {
+
+    /**
+     * 缓存项创建后还能存活多少纳秒
+     */
+    long expireAfterCreate(K key, V value, long currentTime);
+
+    /**
+     * 缓存项的值被替换后还能存活多少纳秒
+     *
+     * @param currentDuration 替换前剩余的存活时间
+     */
+    long expireAfterUpdate(K key, V value, long currentTime, long currentDuration);
+
+    /**
+     * 缓存项被读取后还能存活多少纳秒
+     *
+     * @param currentDuration 读取前剩余的存活时间
+     */
+    long expireAfterRead(K key, V value, long currentTime, long currentDuration);
+}
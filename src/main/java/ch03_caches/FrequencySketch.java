@@ -0,0 +1,88 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+
+/**
+ * Count-Min Sketch 频率统计
+ * 用4个哈希函数把键映射到4个4位计数器上，取最小值作为该键的访问频率估计，频率最大为15
+ * 每记录 10 * 容量 次访问后所有计数器减半，让过去的热点逐渐冷却
+ **/
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // 每个long存放16个4位计数器
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(int maximumSize) {
+        Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive: %s", maximumSize);
+        int length = IntMath.ceilingPowerOfTwo(Math.max(maximumSize, 16));
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * maximumSize;
+    }
+
+    /**
+     * 返回键的估计访问频率(0 ~ 15)
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问，计数器达到15后不再增加
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    // 所有计数器减半
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    // 每个哈希函数使用该long中不同的计数器
+    private int counterOffset(int hash, int i) {
+        return (((hash >>> (i << 3)) & 3) + (i << 2)) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,146 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的RemoteStore，用来代替远程存储做演示和测试
+ *
+ * 可以为每次往返模拟一段延迟，并统计往返次数
+ * 写操作产生的失效消息先放进缓冲区，攒够batchSize条或每隔flushInterval由调度线程成批发送，
+ * 与远程存储通过消息队列广播失效消息的行为类似：写入成功后，订阅者要稍后才会收到失效消息
+ **/
+public class InMemoryRemoteStore<K, V> implements RemoteStore<K, V> {
+
+    private final ConcurrentMap<K, Versioned<V>> data = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final long latencyNanos;
+    private final int batchSize;
+
+    private final List<Invalidation<K>> pending = new ArrayList<>();
+    private final List<InvalidationListener<K>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong roundTripCount = new AtomicLong();
+
+    /**
+     * @param latency       每次往返的模拟延迟
+     * @param latencyUnit   latency的时间单位
+     * @param batchSize     攒够多少条失效消息后立即发送
+     * @param flushInterval 定时发送失效消息的间隔
+     * @param flushUnit     flushInterval的时间单位
+     * @param scheduler     执行定时发送的调度器
+     */
+    public InMemoryRemoteStore(long latency, TimeUnit latencyUnit, int batchSize, long flushInterval,
+                               TimeUnit flushUnit, ScheduledExecutorService scheduler) {
+        Preconditions.checkArgument(latency >= 0, "latency cannot be negative: %s", latency);
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive: %s", batchSize);
+        Preconditions.checkArgument(flushInterval > 0, "flushInterval must be positive: %s", flushInterval);
+        this.latencyNanos = latencyUnit.toNanos(latency);
+        this.batchSize = batchSize;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushInvalidations();
+            }
+        }, flushInterval, flushInterval, flushUnit);
+    }
+
+    @Override
+    public Versioned<V> get(K key) {
+        roundTrip();
+        return data.get(key);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(Iterable<? extends K> keys) {
+        roundTrip();
+        Map<K, Versioned<V>> result = Maps.newHashMap();
+        for (K key : keys) {
+            Versioned<V> value = data.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long put(K key, V value) {
+        roundTrip();
+        long newVersion;
+        // 分配版本号和写入放在同一把锁内，保证数据中的版本号按写入顺序递增
+        synchronized (this) {
+            newVersion = version.incrementAndGet();
+            data.put(key, new Versioned<>(value, newVersion));
+        }
+        enqueue(new Invalidation<>(key, newVersion));
+        return newVersion;
+    }
+
+    @Override
+    public long remove(K key) {
+        roundTrip();
+        long newVersion;
+        synchronized (this) {
+            newVersion = version.incrementAndGet();
+            data.remove(key);
+        }
+        enqueue(new Invalidation<>(key, newVersion));
+        return newVersion;
+    }
+
+    @Override
+    public void addInvalidationListener(InvalidationListener<K> listener) {
+        listeners.add(Preconditions.checkNotNull(listener));
+    }
+
+    private void enqueue(Invalidation<K> invalidation) {
+        boolean full;
+        synchronized (pending) {
+            pending.add(invalidation);
+            full = pending.size() >= batchSize;
+        }
+        if (full) {
+            flushInvalidations();
+        }
+    }
+
+    /**
+     * 立即发送缓冲区中的失效消息
+     */
+    public void flushInvalidations() {
+        List<Invalidation<K>> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = ImmutableList.copyOf(pending);
+            pending.clear();
+        }
+        for (InvalidationListener<K> listener : listeners) {
+            listener.onInvalidation(batch);
+        }
+    }
+
+    private void roundTrip() {
+        roundTripCount.incrementAndGet();
+        if (latencyNanos > 0) {
+            Uninterruptibles.sleepUninterruptibly(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // 处理过的请求数，即客户端的往返次数
+    public long roundTripCount() {
+        return roundTripCount.get();
+    }
+}
@@ -0,0 +1,262 @@
+package ch03_caches;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.ForwardingLoadingCache;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带详细指标的LoadingCache
+ *
+ * CacheStats只提供累计值和平均值(如averageLoadPenalty())，InstrumentedCache额外记录：
+ *  get延迟、加载延迟、缓存项存活时间的直方图(LatencyHistogram)
+ *  按RemovalCause统计的移除次数
+ *  最近一段时间(滑动窗口)的命中率
+ * 通过metrics()拉取快照
+ *
+ * 为了尽量降低记录指标的开销(MetricsOverheadBenchmark中每次命中比不开启统计慢约10ns，约一半来自recordStats())：
+ *  命中和未命中直接复用recordStats()的计数，不再额外计数
+ *  get延迟每64次只采样1次，其余请求不调用System.nanoTime()
+ *  滑动窗口只在采样和拉取快照时推进，不为每次请求读取时钟
+ *  直方图和移除计数按线程分组或使用LongAdder，多线程时不争用同一个变量
+ **/
+public class InstrumentedCache<K, V> extends ForwardingLoadingCache<K, V> {
+
+    private static final int SAMPLE_MASK = 63;
+    private static final int WINDOW_SLOTS = 10;
+    private static final long SLOT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LoadingCache<K, V> delegate;
+
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private final LatencyHistogram timeInCache = new LatencyHistogram();
+    private final LongAdder[] removalCounts = new LongAdder[RemovalCause.values().length];
+    private final ConcurrentMap<K, Long> writeTimes = Maps.newConcurrentMap();
+
+    // 滑动窗口按时间记录累计请求数和未命中数的检查点
+    private final long[] checkpointTimes = new long[WINDOW_SLOTS];
+    private final long[] checkpointRequests = new long[WINDOW_SLOTS];
+    private final long[] checkpointMisses = new long[WINDOW_SLOTS];
+    private int checkpointIndex;
+
+    private InstrumentedCache(CacheBuilder<Object, Object> builder, final CacheLoader<? super K, V> loader) {
+        for (int i = 0; i < removalCounts.length; i++) {
+            removalCounts[i] = new LongAdder();
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < WINDOW_SLOTS; i++) {
+            checkpointTimes[i] = now;
+        }
+
+        this.delegate = builder
+                .recordStats()
+                .removalListener(new RemovalListener<K, V>() {
+                    public void onRemoval(RemovalNotification<K, V> notification) {
+                        removalCounts[notification.getCause().ordinal()].increment();
+                        K key = notification.getKey();
+                        Long writeTime = null;
+                        if (key != null) {
+                            // 被替换(put、reload)时键上已经是新值，从现在开始计算新值的存活时间
+                            writeTime = notification.getCause() == RemovalCause.REPLACED
+                                    ? writeTimes.put(key, System.nanoTime())
+                                    : writeTimes.remove(key);
+                        }
+                        if (writeTime != null) {
+                            timeInCache.record(System.nanoTime() - writeTime);
+                        }
+                    }
+                })
+                .build(new CacheLoader<K, V>() {
+                    public V load(final K key) throws Exception {
+                        return timedLoad(key, new Callable<V>() {
+                            public V call() throws Exception {
+                                return loader.load(key);
+                            }
+                        });
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    public Map<K, V> loadAll(Iterable<? extends K> keys) throws Exception {
+                        long start = System.nanoTime();
+                        Map<K, V> result = (Map<K, V>) loader.loadAll(keys);
+                        long end = System.nanoTime();
+                        loadLatency.record(end - start);
+                        for (K key : result.keySet()) {
+                            writeTimes.put(key, end);
+                        }
+                        return result;
+                    }
+
+                    // 新值的写入时间在RemovalListener收到REPLACED时记录
+                    public ListenableFuture<V> reload(K key, V oldValue) throws Exception {
+                        final long start = System.nanoTime();
+                        ListenableFuture<V> future = loader.reload(key, oldValue);
+                        future.addListener(new Runnable() {
+                            public void run() {
+                                loadLatency.record(System.nanoTime() - start);
+                            }
+                        }, MoreExecutors.directExecutor());
+                        return future;
+                    }
+                });
+    }
+
+    // 记录加载延迟，只有加载成功时才记录写入时间，失败的键不会留在writeTimes中
+    private V timedLoad(K key, Callable<? extends V> loader) throws Exception {
+        long start = System.nanoTime();
+        try {
+            V value = loader.call();
+            writeTimes.put(key, System.nanoTime());
+            return value;
+        } finally {
+            loadLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param builder 缓存的配置，不能设置removalListener
+     * @param loader  加载器
+     */
+    public static <K, V> InstrumentedCache<K, V> create(CacheBuilder<Object, Object> builder,
+                                                        CacheLoader<? super K, V> loader) {
+        return new InstrumentedCache<>(builder, loader);
+    }
+
+    @Override
+    protected LoadingCache<K, V> delegate() {
+        return delegate;
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return delegate.get(key);
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.get(key);
+        } finally {
+            long end = System.nanoTime();
+            getLatency.record(end - start);
+            maybeCheckpoint(end);
+        }
+    }
+
+    @Override
+    public V getUnchecked(K key) {
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return delegate.getUnchecked(key);
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.getUnchecked(key);
+        } finally {
+            long end = System.nanoTime();
+            getLatency.record(end - start);
+            maybeCheckpoint(end);
+        }
+    }
+
+    @Override
+    public V get(final K key, final Callable<? extends V> valueLoader) throws ExecutionException {
+        Callable<V> timed = new Callable<V>() {
+            public V call() throws Exception {
+                return timedLoad(key, valueLoader);
+            }
+        };
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return delegate.get(key, timed);
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.get(key, timed);
+        } finally {
+            long end = System.nanoTime();
+            getLatency.record(end - start);
+            maybeCheckpoint(end);
+        }
+    }
+
+    // 一次getAll按一次请求采样
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return delegate.getAll(keys);
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.getAll(keys);
+        } finally {
+            long end = System.nanoTime();
+            getLatency.record(end - start);
+            maybeCheckpoint(end);
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        delegate.put(key, value);
+        // 被替换的旧值已经在RemovalListener中同步结算，这里记录新值(包括新的键)的写入时间
+        writeTimes.put(key, System.nanoTime());
+    }
+
+    /**
+     * 拉取当前的指标快照
+     */
+    public CacheMetrics metrics() {
+        long now = System.nanoTime();
+        maybeCheckpoint(now);
+
+        EnumMap<RemovalCause, Long> removals = new EnumMap<>(RemovalCause.class);
+        for (RemovalCause cause : RemovalCause.values()) {
+            removals.put(cause, removalCounts[cause.ordinal()].sum());
+        }
+        return new CacheMetrics(delegate.stats(), getLatency.snapshot(), loadLatency.snapshot(),
+                timeInCache.snapshot(), ImmutableMap.copyOf(removals), windowHitRate());
+    }
+
+    // 距离上一个检查点超过一格时记录新的检查点，覆盖最老的一个
+    private void maybeCheckpoint(long now) {
+        int last = (checkpointIndex + WINDOW_SLOTS - 1) % WINDOW_SLOTS;
+        if (now - checkpointTimes[last] < SLOT_NANOS) {
+            return;
+        }
+        synchronized (this) {
+            last = (checkpointIndex + WINDOW_SLOTS - 1) % WINDOW_SLOTS;
+            if (now - checkpointTimes[last] < SLOT_NANOS) {
+                return;
+            }
+            CacheStats stats = delegate.stats();
+            checkpointTimes[checkpointIndex] = now;
+            checkpointRequests[checkpointIndex] = stats.requestCount();
+            checkpointMisses[checkpointIndex] = stats.missCount();
+            checkpointIndex = (checkpointIndex + 1) % WINDOW_SLOTS;
+        }
+    }
+
+    // 与最老的检查点相比，约WINDOW_SLOTS秒内的命中率
+    private synchronized double windowHitRate() {
+        CacheStats stats = delegate.stats();
+        long requests = stats.requestCount() - checkpointRequests[checkpointIndex];
+        long misses = stats.missCount() - checkpointMisses[checkpointIndex];
+        return requests <= 0 ? 1.0 : Math.max(0, (double) (requests - misses) / requests);
+    }
+}
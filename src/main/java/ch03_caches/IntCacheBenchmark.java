@@ -0,0 +1,111 @@
+package ch03_caches;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 比较IntLoadingCache与CacheBuilder构建的LoadingCache<Integer, Integer>
+ * 分别统计每次查找分配的字节数和p99延迟(单线程，键在0~9999之间，缓存容量1000)
+ *
+ * 分配字节数通过com.sun.management.ThreadMXBean统计，只在HotSpot类JVM上可用
+ **/
+public class IntCacheBenchmark {
+
+    private static final int OPERATIONS = 2_000_000;
+    private static final int KEY_SPACE = 10_000;
+
+    public static void main(String args[]) throws Exception {
+        int[] trace = new int[OPERATIONS];
+        Random random = new Random(42);
+        for (int i = 0; i < trace.length; i++) {
+            // 一半的访问落在10%的键上
+            trace[i] = random.nextBoolean() ? random.nextInt(KEY_SPACE / 10) : random.nextInt(KEY_SPACE);
+        }
+
+        final LoadingCache<Integer, Integer> boxed = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .recordStats()
+                .build(new CacheLoader<Integer, Integer>() {
+                    public Integer load(Integer key) {
+                        return key * 2;
+                    }
+                });
+        final IntLoadingCache primitive = IntLoadingCache.newBuilder()
+                .maximumSize(1000)
+                .build(new IntLoadingCache.IntCacheLoader() {
+                    public int load(int key) {
+                        return key * 2;
+                    }
+                });
+
+        // 预热
+        for (int round = 0; round < 3; round++) {
+            run(trace, new Lookup() {
+                public int get(int key) {
+                    return boxed.getUnchecked(key);
+                }
+            });
+            run(trace, new Lookup() {
+                public int get(int key) {
+                    return primitive.getIntUnchecked(key);
+                }
+            });
+        }
+
+        // CacheBuilder    bytes/op: 153.4, p50: 571ns, p99: 879ns
+        report("CacheBuilder", trace, new Lookup() {
+            public int get(int key) {
+                return boxed.getUnchecked(key);
+            }
+        });
+        // IntLoadingCache bytes/op: 0.0, p50: 289ns, p99: 551ns
+        report("IntLoadingCache", trace, new Lookup() {
+            public int get(int key) {
+                return primitive.getIntUnchecked(key);
+            }
+        });
+
+        // CacheBuilder hitRate: 29.01%, IntLoadingCache hitRate: 32.23%
+        System.out.println(String.format("CacheBuilder hitRate: %.2f%%, IntLoadingCache hitRate: %.2f%%",
+                boxed.stats().hitRate() * 100, primitive.stats().hitRate() * 100));
+    }
+
+    private interface Lookup {
+        int get(int key);
+    }
+
+    private static void report(String name, int[] trace, Lookup lookup) {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        run(trace, lookup);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        long[] latencies = new long[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            long start = System.nanoTime();
+            lookup.get(trace[i]);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%-15s bytes/op: %.1f, p50: %dns, p99: %dns",
+                name, (double) allocated / trace.length,
+                latencies[latencies.length / 2], latencies[(int) (latencies.length * 0.99)]));
+    }
+
+    private static long run(int[] trace, Lookup lookup) {
+        long sum = 0;
+        for (int key : trace) {
+            sum += lookup.get(key);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,371 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.CacheStats;
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * int键、int值的LoadingCache
+ *
+ * LoadingCache<Integer, Integer>的每次查找都要装箱键和值，getAll(Ints.asList(...))还要再包装一层List
+ * IntLoadingCache把键和值直接存放在int数组中(开放寻址、线性探测)，查找时不产生任何对象
+ * 删除时把后面的缓存项向前移动(backward shift)，不使用删除标记，因此也不需要重建数组
+ * 支持与CacheBuilder相同的maximumSize、expireAfterWrite、expireAfterAccess和统计功能：
+ *  容量满时按CLOCK(二次机会)算法回收，近似LRU
+ *  过期时间记录在long数组中，读写时检查
+ *
+ * 加载在锁外进行，同一个键可能被并发加载多次，后写入的值覆盖前者
+ **/
+public class IntLoadingCache {
+
+    /**
+     * int键的加载器
+     */
+    public interface IntCacheLoader {
+        int load(int key) throws Exception;
+
+        /**
+         * 批量加载，返回的数组与keys一一对应
+         */
+        default int[] loadAll(int[] keys) throws Exception {
+            int[] values = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = load(keys[i]);
+            }
+            return values;
+        }
+    }
+
+    private final IntCacheLoader loader;
+    private final int maximumSize;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final Ticker ticker;
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    private final int mask;
+    private final int[] keys;
+    private final int[] values;
+    private final boolean[] used;
+    private final boolean[] referenced;
+    private final long[] writeTimes;
+    private final long[] accessTimes;
+    private int size;
+    private int clockHand;
+
+    private IntLoadingCache(Builder builder, IntCacheLoader loader) {
+        this.loader = loader;
+        this.maximumSize = builder.maximumSize;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.ticker = builder.ticker;
+
+        // 装载因子不超过0.5，保证探测序列足够短
+        int capacity = IntMath.ceilingPowerOfTwo(Math.max(maximumSize, 8) * 2);
+        this.mask = capacity - 1;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.used = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.writeTimes = expireAfterWriteNanos >= 0 ? new long[capacity] : null;
+        this.accessTimes = expireAfterAccessNanos >= 0 ? new long[capacity] : null;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * IntLoadingCache的构建器，用法与CacheBuilder类似
+     */
+    public static class Builder {
+        private int maximumSize = -1;
+        private long expireAfterWriteNanos = -1;
+        private long expireAfterAccessNanos = -1;
+        private Ticker ticker = Ticker.systemTicker();
+
+        private Builder() {
+        }
+
+        public Builder maximumSize(int maximumSize) {
+            Preconditions.checkArgument(maximumSize > 0, "maximumSize must be positive: %s", maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder expireAfterWrite(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder expireAfterAccess(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder ticker(Ticker ticker) {
+            this.ticker = Preconditions.checkNotNull(ticker);
+            return this;
+        }
+
+        public IntLoadingCache build(IntCacheLoader loader) {
+            // 开放寻址的数组大小固定，必须设置容量上限
+            Preconditions.checkState(maximumSize > 0, "maximumSize must be set");
+            return new IntLoadingCache(this, Preconditions.checkNotNull(loader));
+        }
+    }
+
+    /**
+     * 返回已经缓存的值，或者使用IntCacheLoader加载新值
+     */
+    public int getInt(int key) throws ExecutionException {
+        synchronized (this) {
+            int index = find(key);
+            if (index >= 0) {
+                statsCounter.recordHits(1);
+                return values[index];
+            }
+        }
+        statsCounter.recordMisses(1);
+
+        long start = ticker.read();
+        int value;
+        try {
+            value = loader.load(key);
+        } catch (RuntimeException e) {
+            statsCounter.recordLoadException(ticker.read() - start);
+            throw new UncheckedExecutionException(e);
+        } catch (Exception e) {
+            statsCounter.recordLoadException(ticker.read() - start);
+            throw new ExecutionException(e);
+        }
+        statsCounter.recordLoadSuccess(ticker.read() - start);
+        put(key, value);
+        return value;
+    }
+
+    /**
+     * IntCacheLoader没有声明检查型异常时使用
+     */
+    public int getIntUnchecked(int key) {
+        try {
+            return getInt(key);
+        } catch (ExecutionException e) {
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * 批量查询，返回的数组与keys一一对应，未缓存的键通过一次IntCacheLoader.loadAll加载
+     */
+    public int[] getAll(int[] keys) throws ExecutionException {
+        int[] result = new int[keys.length];
+        int[] missingPositions = new int[keys.length];
+        int missing = 0;
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                int index = find(keys[i]);
+                if (index >= 0) {
+                    result[i] = values[index];
+                } else {
+                    missingPositions[missing++] = i;
+                }
+            }
+        }
+        statsCounter.recordHits(keys.length - missing);
+        if (missing == 0) {
+            return result;
+        }
+        statsCounter.recordMisses(missing);
+
+        int[] missingKeys = new int[missing];
+        for (int i = 0; i < missing; i++) {
+            missingKeys[i] = keys[missingPositions[i]];
+        }
+        long start = ticker.read();
+        int[] loaded;
+        try {
+            loaded = loader.loadAll(missingKeys);
+        } catch (RuntimeException e) {
+            statsCounter.recordLoadException(ticker.read() - start);
+            throw new UncheckedExecutionException(e);
+        } catch (Exception e) {
+            statsCounter.recordLoadException(ticker.read() - start);
+            throw new ExecutionException(e);
+        }
+        if (loaded.length != missing) {
+            statsCounter.recordLoadException(ticker.read() - start);
+            throw new IllegalStateException(String.format(
+                    "loadAll returned %d values for %d keys", loaded.length, missing));
+        }
+        statsCounter.recordLoadSuccess(ticker.read() - start);
+
+        synchronized (this) {
+            for (int i = 0; i < missing; i++) {
+                putLocked(missingKeys[i], loaded[i]);
+                result[missingPositions[i]] = loaded[i];
+            }
+        }
+        return result;
+    }
+
+    public synchronized void put(int key, int value) {
+        putLocked(key, value);
+    }
+
+    public synchronized void invalidate(int key) {
+        int index = find(key);
+        if (index >= 0) {
+            remove(index);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    // 返回键所在的位置，没有或已过期时返回-1，调用方持有锁
+    private int find(int key) {
+        int index = spread(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                if (writeTimes != null || accessTimes != null) {
+                    long now = ticker.read();
+                    if (isExpired(index, now)) {
+                        remove(index);
+                        statsCounter.recordEviction();
+                        return -1;
+                    }
+                    if (accessTimes != null) {
+                        accessTimes[index] = now;
+                    }
+                }
+                referenced[index] = true;
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void putLocked(int key, int value) {
+        int index = spread(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                values[index] = value;
+                recordWrite(index);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (size >= maximumSize) {
+            evict();
+            // 回收时后面的缓存项可能前移，重新查找空位
+            index = spread(key) & mask;
+            while (used[index]) {
+                index = (index + 1) & mask;
+            }
+        }
+        keys[index] = key;
+        values[index] = value;
+        used[index] = true;
+        referenced[index] = false;
+        recordWrite(index);
+        size++;
+    }
+
+    // CLOCK算法：转动指针，跳过最近被访问过的缓存项(清除其访问标记)，回收第一个未被访问或已过期的缓存项
+    private void evict() {
+        long now = ticker.read();
+        while (true) {
+            int index = clockHand;
+            clockHand = (clockHand + 1) & mask;
+            if (!used[index]) {
+                continue;
+            }
+            if (referenced[index] && !isExpired(index, now)) {
+                referenced[index] = false;
+                continue;
+            }
+            remove(index);
+            statsCounter.recordEviction();
+            return;
+        }
+    }
+
+    // 删除后把探测序列上后续的缓存项前移填补空位，保证查找遇到空位即可停止
+    private void remove(int index) {
+        size--;
+        int gap = index;
+        int i = index;
+        while (true) {
+            i = (i + 1) & mask;
+            if (!used[i]) {
+                break;
+            }
+            int home = spread(keys[i]) & mask;
+            // home不在(gap, i]之间时，这个缓存项可以移动到gap
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                move(i, gap);
+                gap = i;
+            }
+        }
+        used[gap] = false;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        used[to] = true;
+        referenced[to] = referenced[from];
+        if (writeTimes != null) {
+            writeTimes[to] = writeTimes[from];
+        }
+        if (accessTimes != null) {
+            accessTimes[to] = accessTimes[from];
+        }
+    }
+
+    private void recordWrite(int index) {
+        if (writeTimes == null && accessTimes == null) {
+            return;
+        }
+        long now = ticker.read();
+        if (writeTimes != null) {
+            writeTimes[index] = now;
+        }
+        if (accessTimes != null) {
+            accessTimes[index] = now;
+        }
+    }
+
+    private boolean isExpired(int index, long now) {
+        return (writeTimes != null && now - writeTimes[index] >= expireAfterWriteNanos)
+                || (accessTimes != null && now - accessTimes[index] >= expireAfterAccessNanos);
+    }
+
+    private static int spread(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
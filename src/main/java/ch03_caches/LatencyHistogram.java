@@ -0,0 +1,147 @@
+package ch03_caches;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图
+ * 与HdrHistogram类似按对数-线性方式分桶：每个2的幂区间再均分为16个子桶，相对误差不超过1/16(约6%)
+ * 记录一个值只需要计算桶下标并做一次原子自增
+ * 计数器按线程分成多组(striped)，减少多线程记录时对同一缓存行的争用，读取时再合并
+ **/
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    // 每组计数器之间留出一个缓存行，避免伪共享
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray counts;
+    private final AtomicLongArray sums;
+    private final int stripeMask;
+    private final int stripeLength;
+
+    public LatencyHistogram() {
+        int stripes = IntMath.ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+        this.stripeMask = stripes - 1;
+        this.stripeLength = BUCKETS + PADDING;
+        this.counts = new AtomicLongArray(stripes * stripeLength);
+        this.sums = new AtomicLongArray(stripes * PADDING);
+    }
+
+    /**
+     * 记录一个纳秒值，负数按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counts.incrementAndGet(stripe * stripeLength + bucketIndex(value));
+        sums.addAndGet(stripe * PADDING, value);
+    }
+
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] += counts.get(stripe * stripeLength + i);
+            }
+        }
+        long sum = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            sum += sums.get(stripe * PADDING);
+        }
+        return new Snapshot(merged, sum);
+    }
+
+    // 小于16的值直接作为下标，其余值按最高位所在的区间和其后4位确定下标
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // 下标对应区间的上界
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long base = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    /**
+     * 直方图在某一时刻的不可变快照
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * 返回给定百分位(0 ~ 100)的近似值，没有记录时返回0
+         */
+        public long percentile(double percentile) {
+            Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+                    "percentile must be between 0 and 100: %s", percentile);
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return bucketUpperBound(counts.length - 1);
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("count", count)
+                    .add("mean", String.format("%.1f", mean()))
+                    .add("p50", percentile(50))
+                    .add("p99", percentile(99))
+                    .add("p999", percentile(99.9))
+                    .add("max", max())
+                    .toString();
+        }
+    }
+}
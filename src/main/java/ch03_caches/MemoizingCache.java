@@ -0,0 +1,258 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存递归计算的中间结果
+ *
+ * CachesExplained中的fib(x)直接递归调用自己，缓存只保存了最外层的结果，子问题每次都要重新计算
+ * 而在CacheLoader.load中对同一个缓存调用get加载同一个键会抛出IllegalStateException，递归过深时还会栈溢出
+ * MemoizingCache让RecursiveCacheLoader通过Resolver读取和填充同一个缓存：
+ *  TOP_DOWN：子问题在当前线程中直接递归计算，递归深度超过MAX_INLINE_DEPTH时，
+ *            把缺少的子问题压入显式的栈，先计算它再重新调用外层的compute，调用栈的深度不会超过MAX_INLINE_DEPTH
+ *  BOTTOM_UP：按RecursiveCacheLoader.BottomUp.bottomUpOrder给出的顺序依次计算，没有递归，适合很大的n
+ * 计算过程中不持有任何锁，不会因为子问题互相等待而死锁
+ * 多个线程同时计算同一个键时可能重复计算，结果相同，所以RecursiveCacheLoader应该是纯函数
+ * 一次计算中用到的子问题结果会暂存在本地，缓存容量较小时子问题被回收也不影响计算完成
+ **/
+public class MemoizingCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final int MAX_INLINE_DEPTH = 64;
+
+    /**
+     * 求值策略
+     */
+    public enum Strategy {
+        TOP_DOWN,
+        BOTTOM_UP
+    }
+
+    private final Cache<K, V> cache;
+    private final RecursiveCacheLoader<K, V> loader;
+    private final Strategy strategy;
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+    private final AtomicLong computeCount = new AtomicLong();
+
+    private MemoizingCache(CacheBuilder<Object, Object> builder, RecursiveCacheLoader<K, V> loader, Strategy strategy) {
+        this.cache = builder.build();
+        this.loader = loader;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param builder  保存结果的缓存的配置
+     * @param loader   递归定义的加载器
+     * @param strategy 求值策略，BOTTOM_UP要求loader是RecursiveCacheLoader.BottomUp
+     */
+    public static <K, V> MemoizingCache<K, V> create(CacheBuilder<Object, Object> builder,
+                                                     RecursiveCacheLoader<K, V> loader, Strategy strategy) {
+        Preconditions.checkNotNull(loader);
+        Preconditions.checkArgument(strategy != Strategy.BOTTOM_UP || loader instanceof RecursiveCacheLoader.BottomUp,
+                "BOTTOM_UP requires a RecursiveCacheLoader.BottomUp: %s", loader);
+        return new MemoizingCache<>(Preconditions.checkNotNull(builder), loader, Preconditions.checkNotNull(strategy));
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        V value = cache.getIfPresent(key);
+        if (value == null) {
+            statsCounter.recordMisses(1);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        return value;
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        long start = System.nanoTime();
+        try {
+            Evaluation evaluation = new Evaluation();
+            if (strategy == Strategy.BOTTOM_UP) {
+                for (K dependency : ((RecursiveCacheLoader.BottomUp<K, V>) loader).bottomUpOrder(key)) {
+                    evaluation.evaluate(dependency);
+                }
+            }
+            value = evaluation.evaluate(key);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            return value;
+        } catch (Exception e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            if (e instanceof InvalidCacheLoadException) {
+                throw (InvalidCacheLoadException) e;
+            } else if (e instanceof RuntimeException) {
+                throw new UncheckedExecutionException(e);
+            }
+            throw new ExecutionException(e);
+        } catch (Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionError(e);
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        cache.put(key, value);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    // 调用RecursiveCacheLoader.compute的总次数
+    public long computeCount() {
+        return computeCount.get();
+    }
+
+    /**
+     * Resolver在递归过深时抛出，通知Evaluation先计算key
+     */
+    private static final class MissingDependency extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final Object key;
+
+        MissingDependency(Object key) {
+            super(null, null, false, false);
+            this.key = key;
+        }
+    }
+
+    /**
+     * 一次get的求值过程，只在调用get的线程中使用
+     */
+    private final class Evaluation implements RecursiveCacheLoader.Resolver<K, V> {
+        // 本次求值中已经算出的结果
+        private final Map<K, V> computed = new HashMap<>();
+        // 正在计算的键，包括显式栈中的键和直接递归中的键，用来发现循环依赖
+        private final Set<K> inProgress = new HashSet<>();
+        private int depth;
+
+        V evaluate(K root) throws Exception {
+            V value = lookup(root);
+            if (value != null) {
+                return value;
+            }
+            Deque<K> stack = new ArrayDeque<>();
+            stack.push(root);
+            inProgress.add(root);
+            while (!stack.isEmpty()) {
+                K key = stack.peek();
+                try {
+                    depth = 0;
+                    value = computeAndStore(key);
+                    stack.pop();
+                    inProgress.remove(key);
+                } catch (MissingDependency e) {
+                    @SuppressWarnings("unchecked")
+                    K missing = (K) e.key;
+                    stack.push(missing);
+                    inProgress.add(missing);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public V get(K key) {
+            V value = lookup(key);
+            if (value != null) {
+                return value;
+            }
+            if (inProgress.contains(key)) {
+                throw new IllegalStateException("Recursive load of: " + key);
+            }
+            if (depth >= MAX_INLINE_DEPTH) {
+                throw new MissingDependency(key);
+            }
+            depth++;
+            inProgress.add(key);
+            try {
+                return computeAndStore(key);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // 子问题的受检异常原样传给最外层的get
+                throw new SubComputationException(e);
+            } finally {
+                inProgress.remove(key);
+                depth--;
+            }
+        }
+
+        private V computeAndStore(K key) throws Exception {
+            computeCount.incrementAndGet();
+            V value;
+            try {
+                value = loader.compute(key, this);
+            } catch (SubComputationException e) {
+                throw (Exception) e.getCause();
+            }
+            if (value == null) {
+                throw new InvalidCacheLoadException("RecursiveCacheLoader returned null for key " + key + ".");
+            }
+            computed.put(key, value);
+            cache.put(key, value);
+            return value;
+        }
+
+        private V lookup(K key) {
+            V value = computed.get(key);
+            return value != null ? value : cache.getIfPresent(key);
+        }
+    }
+
+    /**
+     * 把子问题的受检异常包装后穿过compute，由外层还原
+     */
+    private static final class SubComputationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SubComputationException(Exception cause) {
+            super(cause);
+        }
+    }
+}
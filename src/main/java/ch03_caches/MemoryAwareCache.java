@@ -0,0 +1,332 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 根据内存压力调整容量的缓存，用来代替softValues()
+ *
+ * softValues()把回收交给GC，软引用按全局的LRU顺序在Full GC时才被批量清除，命中率和停顿时间都难以预测
+ * MemoryAwareCache按权重限制容量，并监听MemoryPressureMonitor：
+ *  老年代在GC后仍然超过阈值时，把当前容量减半(不低于minimumWeight)，并按LRU顺序立即回收超出的缓存项
+ *  压力解除后(GC后占用率低于阈值的80%)，每秒把容量恢复maximumWeight的1/10，直到maximumWeight
+ * CacheBuilder的maximumWeight在构建后不能修改，所以MemoryAwareCache自己按访问顺序维护缓存项
+ **/
+public class MemoryAwareCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final double RECOVERY_RATIO = 0.8;
+    private static final long RECOVERY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long maximumWeight;
+    private final long minimumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final MemoryPressureMonitor monitor;
+    private final Ticker ticker;
+    private final CacheLoader<? super K, V> loader;
+
+    // 按访问顺序排列，最近最少使用的在前
+    private final LinkedHashMap<K, Node<V>> data = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    private long weightedSize;
+    private volatile long capacity;
+    private long lastRecovery;
+    private final AtomicLong pressureEventCount = new AtomicLong();
+    private final AtomicLong pressureEvictionCount = new AtomicLong();
+
+    private MemoryAwareCache(Builder<K, V> builder, CacheLoader<? super K, V> loader) {
+        this.maximumWeight = builder.maximumWeight;
+        this.minimumWeight = builder.minimumWeight >= 0 ? builder.minimumWeight : maximumWeight / 10;
+        this.weigher = builder.weigher;
+        this.monitor = builder.monitor;
+        this.ticker = builder.ticker;
+        this.loader = loader;
+        this.capacity = maximumWeight;
+        this.lastRecovery = ticker.read();
+        monitor.addListener(new PressureListener(this, monitor));
+    }
+
+    public static <K, V> Builder<K, V> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * MemoryAwareCache的构建器，必须设置maximumWeight、weigher和memoryPressureMonitor
+     */
+    public static class Builder<K, V> {
+        private long maximumWeight = -1;
+        private long minimumWeight = -1;
+        private Weigher<? super K, ? super V> weigher;
+        private MemoryPressureMonitor monitor;
+        private Ticker ticker = Ticker.systemTicker();
+
+        private Builder() {
+        }
+
+        // 没有内存压力时的容量
+        public Builder<K, V> maximumWeight(long maximumWeight) {
+            Preconditions.checkArgument(maximumWeight >= 0, "maximumWeight cannot be negative: %s", maximumWeight);
+            this.maximumWeight = maximumWeight;
+            return this;
+        }
+
+        // 内存压力下容量的下限，默认为maximumWeight的1/10
+        public Builder<K, V> minimumWeight(long minimumWeight) {
+            Preconditions.checkArgument(minimumWeight >= 0, "minimumWeight cannot be negative: %s", minimumWeight);
+            this.minimumWeight = minimumWeight;
+            return this;
+        }
+
+        public Builder<K, V> weigher(Weigher<? super K, ? super V> weigher) {
+            this.weigher = Preconditions.checkNotNull(weigher);
+            return this;
+        }
+
+        public Builder<K, V> memoryPressureMonitor(MemoryPressureMonitor monitor) {
+            this.monitor = Preconditions.checkNotNull(monitor);
+            return this;
+        }
+
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Preconditions.checkNotNull(ticker);
+            return this;
+        }
+
+        public MemoryAwareCache<K, V> build() {
+            checkState();
+            return new MemoryAwareCache<>(this, null);
+        }
+
+        public MemoryAwareCache<K, V> build(CacheLoader<? super K, V> loader) {
+            checkState();
+            return new MemoryAwareCache<>(this, Preconditions.checkNotNull(loader));
+        }
+
+        private void checkState() {
+            Preconditions.checkState(maximumWeight >= 0, "maximumWeight must be set");
+            Preconditions.checkState(weigher != null, "weigher must be set");
+            Preconditions.checkState(monitor != null, "memoryPressureMonitor must be set");
+            Preconditions.checkState(minimumWeight <= maximumWeight,
+                    "minimumWeight (%s) cannot exceed maximumWeight (%s)", minimumWeight, maximumWeight);
+        }
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final int weight;
+
+        Node(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 只持有缓存的弱引用，缓存不再使用后从监控器中移除自己
+     */
+    private static final class PressureListener implements Runnable {
+        private final WeakReference<MemoryAwareCache<?, ?>> cacheRef;
+        private final MemoryPressureMonitor monitor;
+
+        PressureListener(MemoryAwareCache<?, ?> cache, MemoryPressureMonitor monitor) {
+            this.cacheRef = new WeakReference<MemoryAwareCache<?, ?>>(cache);
+            this.monitor = monitor;
+        }
+
+        public void run() {
+            MemoryAwareCache<?, ?> cache = cacheRef.get();
+            if (cache == null) {
+                monitor.removeListener(this);
+            } else {
+                cache.onMemoryPressure();
+            }
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        Node<V> node;
+        synchronized (this) {
+            node = data.get(key);
+        }
+        if (node == null) {
+            statsCounter.recordMisses(1);
+            return null;
+        }
+        statsCounter.recordHits(1);
+        return node.value;
+    }
+
+    @Override
+    public V get(final K key) throws ExecutionException {
+        Preconditions.checkState(loader != null, "MemoryAwareCache was built without a CacheLoader");
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            return getLoaded(existing);
+        }
+
+        long start = System.nanoTime();
+        try {
+            task.run();
+            value = getLoaded(task);
+            if (value == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, value);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            return value;
+        } catch (RuntimeException | ExecutionException | Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw e;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    // 按Guava Cache的约定包装加载过程中的异常
+    private V getLoaded(FutureTask<V> task) throws ExecutionException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw new ExecutionError((Error) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw new UncheckedExecutionException(cause);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        int weight = weigher.weigh(key, value);
+        Preconditions.checkState(weight >= 0, "Weights must be non-negative");
+        synchronized (this) {
+            Node<V> old = data.put(key, new Node<>(value, weight));
+            if (old != null) {
+                weightedSize -= old.weight;
+            }
+            weightedSize += weight;
+            maybeRecover();
+            evictToCapacity();
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(Object key) {
+        Node<V> old = data.remove(key);
+        if (old != null) {
+            weightedSize -= old.weight;
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        data.clear();
+        weightedSize = 0;
+    }
+
+    @Override
+    public synchronized long size() {
+        return data.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public synchronized void cleanUp() {
+        maybeRecover();
+        evictToCapacity();
+    }
+
+    // 内存压力下把容量减半，并立即回收超出的缓存项
+    private synchronized void onMemoryPressure() {
+        pressureEventCount.incrementAndGet();
+        capacity = Math.max(minimumWeight, Math.min(capacity, weightedSize) / 2);
+        lastRecovery = ticker.read();
+        long evicted = evictToCapacity();
+        pressureEvictionCount.addAndGet(evicted);
+    }
+
+    // 压力解除后逐步恢复容量，每秒最多恢复一次
+    private void maybeRecover() {
+        if (capacity >= maximumWeight) {
+            return;
+        }
+        long now = ticker.read();
+        if (now - lastRecovery < RECOVERY_INTERVAL_NANOS
+                || monitor.occupancy() >= monitor.threshold() * RECOVERY_RATIO) {
+            return;
+        }
+        lastRecovery = now;
+        capacity = Math.min(maximumWeight, capacity + Math.max(1, maximumWeight / 10));
+    }
+
+    // 按LRU顺序回收，直到总权重不超过当前容量，返回回收的缓存项数
+    private long evictToCapacity() {
+        long evicted = 0;
+        Iterator<Map.Entry<K, Node<V>>> it = data.entrySet().iterator();
+        while (weightedSize > capacity && it.hasNext()) {
+            Node<V> node = it.next().getValue();
+            it.remove();
+            weightedSize -= node.weight;
+            statsCounter.recordEviction();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    // 当前的动态容量
+    public long capacity() {
+        return capacity;
+    }
+
+    // 所有缓存项的总权重
+    public synchronized long weightedSize() {
+        return weightedSize;
+    }
+
+    // 收到内存压力通知的次数
+    public long pressureEventCount() {
+        return pressureEventCount.get();
+    }
+
+    // 因内存压力回收的缓存项数
+    public long pressureEvictionCount() {
+        return pressureEvictionCount.get();
+    }
+}
@@ -0,0 +1,141 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 监控老年代的占用率
+ *
+ * 通过MemoryPoolMXBean的collection usage threshold，在一次GC后老年代仍然超过给定占用率时通知监听器
+ * GC后的占用率只包含存活对象，比直接读取当前占用率更能反映真实的内存压力
+ * 如果JVM没有支持阈值的堆内存池，监控器不会发出任何通知
+ *
+ * 阈值是内存池的全局设置，同一个JVM中只应创建一个MemoryPressureMonitor，由多个缓存共享
+ * 不再使用时调用close()，从MemoryMXBean上移除通知监听器，并在阈值仍是这个监控器设置的值时把它恢复为0(关闭阈值)
+ **/
+public final class MemoryPressureMonitor implements Closeable {
+
+    private final MemoryPoolMXBean pool;
+    private final double threshold;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final long thresholdBytes;
+    private final NotificationListener notificationListener;
+    private boolean closed;
+
+    private MemoryPressureMonitor(final MemoryPoolMXBean pool, double threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+        if (pool == null) {
+            this.thresholdBytes = 0;
+            this.notificationListener = null;
+            return;
+        }
+        this.thresholdBytes = (long) (pool.getUsage().getMax() * threshold);
+        pool.setCollectionUsageThreshold(thresholdBytes);
+        // MemoryMXBean发出所有内存池的通知，只处理被监控的内存池
+        this.notificationListener = new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    return;
+                }
+                MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+                if (pool.getName().equals(info.getPoolName())) {
+                    notifyListeners();
+                }
+            }
+        };
+        emitter().addNotificationListener(notificationListener, null, null);
+    }
+
+    private static NotificationEmitter emitter() {
+        return (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+    }
+
+    /**
+     * 监控最大的、支持collection usage threshold的堆内存池，通常就是老年代
+     *
+     * @param threshold GC后的占用率超过该值(0 ~ 1)时通知监听器
+     */
+    public static MemoryPressureMonitor forTenuredPool(double threshold) {
+        Preconditions.checkArgument(threshold > 0 && threshold < 1, "threshold must be between 0 and 1: %s", threshold);
+        MemoryPoolMXBean tenured = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0
+                    && (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())) {
+                tenured = pool;
+            }
+        }
+        return new MemoryPressureMonitor(tenured, threshold);
+    }
+
+    public void addListener(Runnable listener) {
+        listeners.add(Preconditions.checkNotNull(listener));
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    // 在JMX的通知线程中执行，监听器应该尽快返回
+    void notifyListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    // 最近一次GC后的占用率，无法获取时返回0
+    public double occupancy() {
+        if (pool == null) {
+            return 0;
+        }
+        MemoryUsage usage = pool.getCollectionUsage();
+        if (usage == null || usage.getMax() <= 0) {
+            return 0;
+        }
+        return (double) usage.getUsed() / usage.getMax();
+    }
+
+    /**
+     * 移除通知监听器，之后不会再通知任何监听器，重复调用没有效果
+     * 其他代码修改过阈值时保留它们的设置
+     */
+    @Override
+    public synchronized void close() {
+        if (closed || pool == null) {
+            return;
+        }
+        closed = true;
+        listeners.clear();
+        try {
+            emitter().removeNotificationListener(notificationListener);
+        } catch (ListenerNotFoundException e) {
+            // 不会发生，监听器只在构造时添加过一次
+        }
+        if (pool.getCollectionUsageThreshold() == thresholdBytes) {
+            pool.setCollectionUsageThreshold(0);
+        }
+    }
+
+    public double threshold() {
+        return threshold;
+    }
+
+    // 被监控的内存池名称，没有可用的内存池时为null
+    public String poolName() {
+        return pool == null ? null : pool.getName();
+    }
+}
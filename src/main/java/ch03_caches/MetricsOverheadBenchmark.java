@@ -0,0 +1,63 @@
+package ch03_caches;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * 测量开启统计功能的开销
+ * 在已经预热的缓存上反复命中同一批键，比较每次get的平均耗时：
+ *  不开启统计、recordStats()、InstrumentedCache
+ **/
+public class MetricsOverheadBenchmark {
+
+    private static final int KEYS = 1000;
+    private static final int OPERATIONS = 20_000_000;
+    private static final int ROUNDS = 7;
+
+    private static final CacheLoader<Integer, Integer> LOADER = new CacheLoader<Integer, Integer>() {
+        public Integer load(Integer key) {
+            return key;
+        }
+    };
+
+    public static void main(String args[]) {
+        Integer[] keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i;
+        }
+
+        LoadingCache<Integer, Integer> plain = CacheBuilder.newBuilder().maximumSize(2 * KEYS).build(LOADER);
+        LoadingCache<Integer, Integer> stats = CacheBuilder.newBuilder().maximumSize(2 * KEYS).recordStats().build(LOADER);
+        InstrumentedCache<Integer, Integer> instrumented =
+                InstrumentedCache.create(CacheBuilder.newBuilder().maximumSize(2 * KEYS), LOADER);
+
+        // 三种缓存交替测量ROUNDS轮，前两轮用于预热，每种取其余轮次中最快的一轮，减少单次测量的抖动
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int round = 0; round < ROUNDS; round++) {
+            double[] result = {measure(plain, keys), measure(stats, keys), measure(instrumented, keys)};
+            for (int i = 0; round >= 2 && i < best.length; i++) {
+                best[i] = Math.min(best[i], result[i]);
+            }
+        }
+
+        // plain: 49.2ns/op, recordStats: 54.7ns/op, InstrumentedCache: 59.5ns/op
+        // 比不开启统计慢约10ns，其中约一半是recordStats()本身的计数，没有达到"几个纳秒"的目标
+        System.out.println(String.format("plain: %.1fns/op, recordStats: %.1fns/op, InstrumentedCache: %.1fns/op",
+                best[0], best[1], best[2]));
+        System.out.println(instrumented.metrics());
+    }
+
+    private static double measure(LoadingCache<Integer, Integer> cache, Integer[] keys) {
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            sum += cache.getUnchecked(keys[i % KEYS]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sum == 42) {
+            System.out.println(sum);
+        }
+        return (double) elapsed / OPERATIONS;
+    }
+}
@@ -0,0 +1,253 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 远程存储前面的本地近缓存(near cache)
+ *
+ * 本地缓存保存带版本号的值，未命中时通过RemoteStore加载，getAll在一次往返中加载所有未命中的键
+ * 订阅RemoteStore的失效消息，每收到一批消息就一次性清除其中所有的键
+ *
+ * 失效消息可能与正在进行的加载交错：加载读到旧版本时失效消息已经处理完，旧值随后才放进缓存
+ * 为了保证处理过失效消息的键不会再读到旧值，NearCache记录每个键最近一次失效的版本号：
+ *  加载到的版本比它旧时退避后重新加载，重试MAX_FETCH_ATTEMPTS次仍然是旧版本时加载失败
+ *  读到缓存中比它旧的值时当作未命中
+ * 失效记录保存INVALIDATION_RETENTION_MINUTES分钟，远大于一次加载的耗时
+ * 加载到新版本后也不能提前删除记录：失效时正在进行的旧加载可能在新加载之后才把旧值放进缓存
+ **/
+public class NearCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final long INVALIDATION_RETENTION_MINUTES = 10;
+    // 读到旧版本时最多加载的次数，两次加载之间的等待时间从INITIAL_BACKOFF_MILLIS开始翻倍
+    private static final int MAX_FETCH_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 1;
+
+    private final RemoteStore<K, V> store;
+    private final LoadingCache<K, Versioned<V>> local;
+    // 键最近一次失效的版本号，缓存中的值至少要达到这个版本
+    private final Cache<K, Long> invalidatedVersions = CacheBuilder.newBuilder()
+            .expireAfterWrite(INVALIDATION_RETENTION_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong roundTripCount = new AtomicLong();
+    private final AtomicLong invalidationBatchCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    private NearCache(CacheBuilder<Object, Object> builder, RemoteStore<K, V> store) {
+        this.store = store;
+        this.local = builder.recordStats().build(new CacheLoader<K, Versioned<V>>() {
+            public Versioned<V> load(K key) {
+                return fetch(key);
+            }
+
+            public Map<K, Versioned<V>> loadAll(Iterable<? extends K> keys) {
+                return fetchAll(keys);
+            }
+        });
+        store.addInvalidationListener(new RemoteStore.InvalidationListener<K>() {
+            public void onInvalidation(List<RemoteStore.Invalidation<K>> invalidations) {
+                applyInvalidations(invalidations);
+            }
+        });
+    }
+
+    /**
+     * @param builder 本地缓存的配置，如maximumSize、expireAfterWrite
+     * @param store   远程存储
+     */
+    public static <K, V> NearCache<K, V> create(CacheBuilder<Object, Object> builder, RemoteStore<K, V> store) {
+        return new NearCache<>(Preconditions.checkNotNull(builder), Preconditions.checkNotNull(store));
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        readCount.incrementAndGet();
+        Versioned<V> versioned = local.getIfPresent(key);
+        if (versioned == null || isStale(key, versioned)) {
+            return null;
+        }
+        return versioned.value();
+    }
+
+    @Override
+    public V get(K key) throws ExecutionException {
+        readCount.incrementAndGet();
+        Versioned<V> versioned = local.get(key);
+        if (isStale(key, versioned)) {
+            local.invalidate(key);
+            versioned = local.get(key);
+        }
+        return versioned.value();
+    }
+
+    @Override
+    public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
+        ImmutableSet<K> keySet = ImmutableSet.copyOf(keys);
+        // 按键计数，与逐个get相比才能算出节省的往返次数
+        readCount.addAndGet(keySet.size());
+        Map<K, Versioned<V>> loaded = local.getAll(keySet);
+        List<K> stale = Lists.newArrayList();
+        for (Map.Entry<K, Versioned<V>> entry : loaded.entrySet()) {
+            if (isStale(entry.getKey(), entry.getValue())) {
+                stale.add(entry.getKey());
+            }
+        }
+        Map<K, Versioned<V>> reloaded = ImmutableMap.of();
+        if (!stale.isEmpty()) {
+            local.invalidateAll(stale);
+            reloaded = local.getAll(stale);
+        }
+
+        ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+        for (Map.Entry<K, Versioned<V>> entry : loaded.entrySet()) {
+            Versioned<V> versioned = reloaded.get(entry.getKey());
+            result.put(entry.getKey(), (versioned != null ? versioned : entry.getValue()).value());
+        }
+        return result.build();
+    }
+
+    /**
+     * 写入远程存储，并把新值放进本地缓存
+     */
+    @Override
+    public void put(K key, V value) {
+        long version = store.put(key, value);
+        Versioned<V> versioned = new Versioned<>(value, version);
+        if (!isStale(key, versioned)) {
+            local.put(key, versioned);
+        }
+    }
+
+    /**
+     * 只清除本地缓存，不影响远程存储
+     */
+    @Override
+    public void invalidate(Object key) {
+        local.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        local.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return local.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return local.stats();
+    }
+
+    @Override
+    public void cleanUp() {
+        local.cleanUp();
+    }
+
+    /**
+     * 加载一个键，读到比失效版本旧的值时退避后重试，最多MAX_FETCH_ATTEMPTS次
+     * 远程存储一直返回旧版本时抛出IllegalStateException，加载失败，不会把旧值放进缓存
+     */
+    private Versioned<V> fetch(K key) {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            roundTripCount.incrementAndGet();
+            Versioned<V> versioned = store.get(key);
+            // 不存在的键返回null，由Guava抛出InvalidCacheLoadException
+            if (versioned == null) {
+                return null;
+            }
+            if (!isStale(key, versioned)) {
+                return versioned;
+            }
+            if (attempt == MAX_FETCH_ATTEMPTS) {
+                throw new IllegalStateException(String.format(
+                        "remote store still returns version %d of %s after %d attempts, invalidated version is %d",
+                        versioned.version(), key, attempt, invalidatedVersions.getIfPresent(key)));
+            }
+            Uninterruptibles.sleepUninterruptibly(backoffMillis, TimeUnit.MILLISECONDS);
+            backoffMillis *= 2;
+        }
+    }
+
+    private Map<K, Versioned<V>> fetchAll(Iterable<? extends K> keys) {
+        roundTripCount.incrementAndGet();
+        Map<K, Versioned<V>> result = Maps.newHashMap(store.getAll(keys));
+        Iterator<Map.Entry<K, Versioned<V>>> it = result.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Versioned<V>> entry = it.next();
+            if (isStale(entry.getKey(), entry.getValue())) {
+                Versioned<V> versioned = fetch(entry.getKey());
+                if (versioned == null) {
+                    it.remove();
+                } else {
+                    entry.setValue(versioned);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isStale(Object key, Versioned<V> versioned) {
+        Long invalidated = invalidatedVersions.getIfPresent(key);
+        return invalidated != null && versioned.version() < invalidated;
+    }
+
+    private void applyInvalidations(List<RemoteStore.Invalidation<K>> invalidations) {
+        List<K> keys = Lists.newArrayListWithCapacity(invalidations.size());
+        for (RemoteStore.Invalidation<K> invalidation : invalidations) {
+            K key = invalidation.key();
+            // 先记录失效版本，再清除缓存，之后开始的加载和读取都能看到这条记录
+            invalidatedVersions.asMap().merge(key, invalidation.version(), Math::max);
+            // 本地缓存已经是这个版本或更新的版本(例如通过put写入的值)时不需要清除
+            Versioned<V> cached = local.asMap().get(key);
+            if (cached == null || cached.version() < invalidation.version()) {
+                keys.add(key);
+            }
+        }
+        local.invalidateAll(keys);
+        invalidationBatchCount.incrementAndGet();
+        invalidationCount.addAndGet(invalidations.size());
+    }
+
+    // 访问远程存储的次数
+    public long roundTripCount() {
+        return roundTripCount.get();
+    }
+
+    // 与每次读取都访问远程存储相比，节省的往返次数
+    public long roundTripsSaved() {
+        return Math.max(0, readCount.get() - roundTripCount.get());
+    }
+
+    // 收到的失效消息批次数
+    public long invalidationBatchCount() {
+        return invalidationBatchCount.get();
+    }
+
+    // 收到的失效消息条数
+    public long invalidationCount() {
+        return invalidationCount.get();
+    }
+}
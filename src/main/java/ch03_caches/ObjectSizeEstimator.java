@@ -0,0 +1,248 @@
+package ch03_caches;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 估算对象在HotSpot上占用的堆内存(retained size)
+ *
+ * 按对象头、字段和8字节对齐估算浅层大小，再沿引用遍历整个对象图，同一个对象只计算一次
+ * 每个类的字段布局只通过反射计算一次，缓存在ClassValue中
+ * 常见类型走快速路径：
+ *  String按长度计算，不遍历内部数组
+ *  没有引用字段的对象(如Integer、Long)直接返回缓存的浅层大小
+ *  数组按元素类型和长度计算
+ * Java 9以后java.*中的类不允许反射访问私有字段，这些类中的Collection和Map通过公开的迭代接口估算，其他类只计算浅层大小
+ * Class对象和枚举常量是全局共享的，不计入大小
+ *
+ * 结果是近似值，适合用来按字节设置maximumWeight，不适合精确的内存分析
+ **/
+public final class ObjectSizeEstimator {
+
+    private static final boolean COMPRESSED_OOPS = compressedOops();
+    private static final int REFERENCE_SIZE = COMPRESSED_OOPS ? 4 : 8;
+    private static final int OBJECT_HEADER = COMPRESSED_OOPS ? 12 : 16;
+    private static final int ARRAY_HEADER = COMPRESSED_OOPS ? 16 : 24;
+    // HashMap.Node等链表节点的大小：对象头、hash、key、value、next
+    private static final int MAP_ENTRY_SIZE = align(OBJECT_HEADER + 4 + 3 * REFERENCE_SIZE);
+    // Java 9起String默认使用Latin-1编码的byte[]
+    private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+    private static final long STRING_SHALLOW_SIZE = align(OBJECT_HEADER + REFERENCE_SIZE + 4 + (COMPACT_STRINGS ? 4 : 0));
+
+    private static final ClassValue<Layout> LAYOUTS = new ClassValue<Layout>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return Layout.of(type);
+        }
+    };
+
+    private ObjectSizeEstimator() {
+    }
+
+    /**
+     * 估算对象及其引用的所有对象占用的字节数，null返回0
+     */
+    public static long sizeOf(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        if (root instanceof String) {
+            return stringSize((String) root);
+        }
+        Class<?> type = root.getClass();
+        if (!type.isArray()) {
+            Layout layout = LAYOUTS.get(type);
+            if (layout.isLeaf()) {
+                return layout.shared ? 0 : layout.shallowSize;
+            }
+        } else if (type.getComponentType().isPrimitive()) {
+            return primitiveArraySize(root);
+        }
+
+        long size = 0;
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>(8));
+        Deque<Object> pending = new ArrayDeque<>(8);
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (visited.add(object)) {
+                size += shallowSize(object, pending);
+            }
+        }
+        return size;
+    }
+
+    // 返回对象本身的大小，并把它引用的对象放进pending
+    private static long shallowSize(Object object, Deque<Object> pending) {
+        if (object instanceof String) {
+            return stringSize((String) object);
+        }
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            if (type.getComponentType().isPrimitive()) {
+                return primitiveArraySize(object);
+            }
+            Object[] array = (Object[]) object;
+            for (Object element : array) {
+                pushIfPresent(pending, element);
+            }
+            return align(ARRAY_HEADER + (long) array.length * REFERENCE_SIZE);
+        }
+
+        Layout layout = LAYOUTS.get(type);
+        if (layout.shared) {
+            return 0;
+        }
+        if (!layout.opaque) {
+            for (Field field : layout.references) {
+                try {
+                    pushIfPresent(pending, field.get(object));
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return layout.shallowSize;
+        }
+
+        // 无法反射访问内部字段的JDK集合，按一个引用数组加上元素估算
+        if (object instanceof Collection) {
+            Collection<?> collection = (Collection<?>) object;
+            for (Object element : collection) {
+                pushIfPresent(pending, element);
+            }
+            return layout.shallowSize + align(ARRAY_HEADER + (long) collection.size() * REFERENCE_SIZE);
+        }
+        if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                pushIfPresent(pending, entry.getKey());
+                pushIfPresent(pending, entry.getValue());
+            }
+            long table = Integer.highestOneBit(Math.max(1, map.size() * 4 / 3)) * 2L;
+            return layout.shallowSize + align(ARRAY_HEADER + table * REFERENCE_SIZE) + (long) map.size() * MAP_ENTRY_SIZE;
+        }
+        return layout.shallowSize;
+    }
+
+    private static void pushIfPresent(Deque<Object> pending, Object object) {
+        if (object != null) {
+            pending.push(object);
+        }
+    }
+
+    private static long stringSize(String s) {
+        int length = s.length();
+        long bytes = length;
+        if (!COMPACT_STRINGS) {
+            bytes = 2L * length;
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) > 0xFF) {
+                    bytes = 2L * length;
+                    break;
+                }
+            }
+        }
+        return STRING_SHALLOW_SIZE + align(ARRAY_HEADER + bytes);
+    }
+
+    private static long primitiveArraySize(Object array) {
+        int elementSize = primitiveSize(array.getClass().getComponentType());
+        return align(ARRAY_HEADER + (long) Array.getLength(array) * elementSize);
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static boolean compressedOops() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Boolean.parseBoolean(bean.getVMOption("UseCompressedOops").getValue());
+        } catch (RuntimeException | LinkageError e) {
+            // 非HotSpot JVM，按堆小于32GB时默认开启压缩指针估算
+            return Runtime.getRuntime().maxMemory() < (32L << 30);
+        }
+    }
+
+    /**
+     * 一个类的实例布局：浅层大小和所有引用类型的字段
+     */
+    private static final class Layout {
+        final long shallowSize;
+        final Field[] references;
+        // 字段不能通过反射访问
+        final boolean opaque;
+        // Class和枚举常量，所有缓存项共享同一个实例
+        final boolean shared;
+
+        private Layout(long shallowSize, Field[] references, boolean opaque, boolean shared) {
+            this.shallowSize = shallowSize;
+            this.references = references;
+            this.opaque = opaque;
+            this.shared = shared;
+        }
+
+        boolean isLeaf() {
+            return shared || (references.length == 0 && !opaque);
+        }
+
+        static Layout of(Class<?> type) {
+            if (type == Class.class || Enum.class.isAssignableFrom(type)) {
+                return new Layout(0, new Field[0], false, true);
+            }
+            long size = OBJECT_HEADER;
+            List<Field> references = new ArrayList<>();
+            boolean opaque = false;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    Class<?> fieldType = field.getType();
+                    if (fieldType.isPrimitive()) {
+                        size += primitiveSize(fieldType);
+                        continue;
+                    }
+                    size += REFERENCE_SIZE;
+                    try {
+                        field.setAccessible(true);
+                        references.add(field);
+                    } catch (RuntimeException e) {
+                        // Java 9以后的InaccessibleObjectException
+                        opaque = true;
+                    }
+                }
+            }
+            return new Layout(align(size), references.toArray(new Field[0]), opaque, false);
+        }
+    }
+}
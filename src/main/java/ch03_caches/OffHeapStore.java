@@ -0,0 +1,147 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * 堆外存储
+ * 所有值序列化后顺序写入一块直接内存(ByteBuffer.allocateDirect)，像环形日志一样循环使用
+ * 空间不够时从最早写入的记录开始回收(FIFO)，被删除或覆盖的记录在轮到它时顺便回收
+ * 只有键和记录的位置保存在堆内
+ **/
+class OffHeapStore<K, V> {
+
+    private static class Record<K> {
+        final K key;
+        final int offset;
+        final int length;
+        boolean live = true;
+
+        Record(K key, int offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final Serializer<V> serializer;
+    private final Map<K, Record<K>> index = Maps.newHashMap();
+    // 按写入顺序排列的记录，队首是最早写入的
+    private final ArrayDeque<Record<K>> log = new ArrayDeque<>();
+    private int tail;
+    private long usedBytes;
+    private long evictionCount;
+
+    OffHeapStore(int capacityBytes, Serializer<V> serializer) {
+        Preconditions.checkArgument(capacityBytes > 0, "capacityBytes must be positive: %s", capacityBytes);
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+        this.serializer = Preconditions.checkNotNull(serializer);
+    }
+
+    /**
+     * 写入一个值，比整块存储还大的值会被丢弃
+     */
+    synchronized void put(K key, V value) {
+        invalidate(key);
+        byte[] bytes = serializer.serialize(value);
+        if (bytes.length > buffer.capacity()) {
+            return;
+        }
+        int offset = allocate(bytes.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+
+        Record<K> record = new Record<>(key, offset, bytes.length);
+        log.addLast(record);
+        index.put(key, record);
+        usedBytes += bytes.length;
+    }
+
+    /**
+     * 取出并删除一个值，不存在时返回null
+     */
+    synchronized V remove(Object key) {
+        Record<K> record = index.remove(key);
+        if (record == null) {
+            return null;
+        }
+        record.live = false;
+        usedBytes -= record.length;
+        ByteBuffer source = buffer.duplicate();
+        source.limit(record.offset + record.length);
+        source.position(record.offset);
+        return serializer.deserialize(source.slice());
+    }
+
+    synchronized void invalidate(Object key) {
+        Record<K> record = index.remove(key);
+        if (record != null) {
+            record.live = false;
+            usedBytes -= record.length;
+        }
+    }
+
+    synchronized void clear() {
+        index.clear();
+        log.clear();
+        tail = 0;
+        usedBytes = 0;
+    }
+
+    synchronized long size() {
+        return index.size();
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    // 在日志尾部找出length个连续字节，必要时回收最早的记录
+    private int allocate(int length) {
+        while (true) {
+            if (log.isEmpty()) {
+                tail = 0;
+                return reserve(0, length);
+            }
+            int head = log.peekFirst().offset;
+            if (tail > head) {
+                // 未回绕：可以使用tail之后的空间，或者回绕到开头使用head之前的空间
+                if (tail + length <= buffer.capacity()) {
+                    return reserve(tail, length);
+                }
+                if (length <= head) {
+                    return reserve(0, length);
+                }
+            } else if (tail + length <= head) {
+                // 已回绕：只能使用tail与head之间的空间
+                return reserve(tail, length);
+            }
+            evictOldest();
+        }
+    }
+
+    private int reserve(int offset, int length) {
+        tail = offset + length;
+        return offset;
+    }
+
+    private void evictOldest() {
+        Record<K> record = log.pollFirst();
+        if (record.live) {
+            record.live = false;
+            index.remove(record.key);
+            usedBytes -= record.length;
+            evictionCount++;
+        }
+    }
+}
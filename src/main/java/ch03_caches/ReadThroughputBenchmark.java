@@ -0,0 +1,105 @@
+package ch03_caches;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 比较BufferedReadCache与CacheBuilder构建的缓存在多线程下的吞吐量
+ * 两个缓存都设置maximumSize(10000)和expireAfterAccess(10分钟)，所有键预先放入缓存，读操作都会命中
+ * 线程数从1到64，读写比例分别为100%读和95%读5%写，每种组合运行RUN_MILLIS毫秒
+ * 键按Zipf分布选取，每个线程从轨迹的不同位置开始
+ *
+ * 结果依赖CPU核数，核数少于线程数时多线程的数据主要反映锁竞争和上下文切换的开销
+ **/
+public class ReadThroughputBenchmark {
+
+    private static final int MAXIMUM_SIZE = 10_000;
+    private static final int TRACE_LENGTH = 1 << 20;
+    private static final long RUN_MILLIS = 300;
+
+    public static void main(String args[]) throws Exception {
+        final int[] trace = AdmissionTraceComparison.zipfTrace(new Random(42), MAXIMUM_SIZE, TRACE_LENGTH);
+        final Cache<Integer, Integer> guava = CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_SIZE)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build();
+        final Cache<Integer, Integer> buffered = BufferedReadCache.<Integer, Integer>newBuilder()
+                .maximumSize(MAXIMUM_SIZE)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build();
+        for (int key = 0; key < MAXIMUM_SIZE; key++) {
+            guava.put(key, key);
+            buffered.put(key, key);
+        }
+
+        // 预热
+        run(guava, trace, 4, 100);
+        run(buffered, trace, 4, 100);
+
+        // 单位：百万次操作/秒
+        // threads  read%   CacheBuilder  BufferedReadCache
+        // 1        100           1.60           2.53
+        // 8        100           5.04           8.10
+        // 64       100           4.66           9.68
+        // 1        95            1.21           2.12
+        // 64       95            3.45           7.10
+        System.out.println("threads  read%   CacheBuilder  BufferedReadCache");
+        for (int readPercent : new int[]{100, 95}) {
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                double guavaOps = run(guava, trace, threads, readPercent);
+                double bufferedOps = run(buffered, trace, threads, readPercent);
+                System.out.println(String.format("%-8d %-7d %10.2f %14.2f", threads, readPercent, guavaOps, bufferedOps));
+            }
+        }
+    }
+
+    // 返回每秒的操作数(百万)
+    private static double run(final Cache<Integer, Integer> cache, final int[] trace, int threads,
+                              final int readPercent) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final LongAdder operations = new LongAdder();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * (TRACE_LENGTH / threads);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(offset);
+                    int index = offset;
+                    long count = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            Integer key = trace[index++ & (TRACE_LENGTH - 1)];
+                            if (readPercent == 100 || random.nextInt(100) < readPercent) {
+                                cache.getIfPresent(key);
+                            } else {
+                                cache.put(key, key);
+                            }
+                            count++;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        operations.add(count);
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        TimeUnit.MILLISECONDS.sleep(RUN_MILLIS);
+        stop.set(true);
+        done.await();
+        return operations.sum() * 1e3 / (System.nanoTime() - begin);
+    }
+}
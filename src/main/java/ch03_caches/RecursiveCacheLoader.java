@@ -0,0 +1,38 @@
+package ch03_caches;
+
+/**
+ * 递归定义的加载器，配合MemoizingCache使用
+ *
+ * compute通过Resolver获取子问题的结果，子问题的结果和最终结果都会放进同一个缓存
+ * 例如斐波那契数列：compute(n) = resolver.get(n - 1) + resolver.get(n - 2)
+ *
+ * Resolver.get在递归过深时会抛出一个内部异常，让MemoizingCache先计算子问题再重新调用compute，
+ * 因此compute不能捕获Resolver.get抛出的RuntimeException，并且应该是没有副作用的纯函数
+ * 需要自底向上求值(MemoizingCache.Strategy.BOTTOM_UP)时继承RecursiveCacheLoader.BottomUp
+ **/
+public abstract class RecursiveCacheLoader<K, V> {
+
+    /**
+     * 计算一个键的值，不能返回null
+     */
+    public abstract V compute(K key, Resolver<K, V> resolver) throws Exception;
+
+    /**
+     * 支持自底向上求值的加载器
+     */
+    public abstract static class BottomUp<K, V> extends RecursiveCacheLoader<K, V> {
+
+        /**
+         * 返回key依赖的所有键，按计算顺序排列，不包括key本身
+         * 按这个顺序计算时，每个键依赖的键都应该已经计算完成，这样就不需要任何递归
+         */
+        public abstract Iterable<? extends K> bottomUpOrder(K key);
+    }
+
+    /**
+     * 在compute中获取子问题的结果，结果已经缓存时直接返回，否则先计算子问题
+     */
+    public interface Resolver<K, V> {
+        V get(K key);
+    }
+}
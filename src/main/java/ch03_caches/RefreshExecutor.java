@@ -0,0 +1,174 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 共享的有界刷新线程池
+ * 所有LoadingCache的异步reload都提交到同一个有名字、有界队列的线程池，而不是每次刷新都新建一个线程池
+ * 同一个加载器的同一个键同时只会有一个刷新在执行，重复的刷新请求会合并到正在执行的那一次
+ * 合并按(owner, 键)进行，owner按引用比较，不同的缓存即使键相同也不会拿到彼此的刷新结果
+ * 队列满时拒绝刷新并继续返回旧值，刷新超时视为失败
+ **/
+public class RefreshExecutor {
+
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+
+    // 正在执行的刷新, 用于按(owner, 键)合并重复的刷新
+    private final ConcurrentMap<RefreshKey, ListenableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param name          线程名前缀
+     * @param threads       刷新线程数
+     * @param queueCapacity 等待队列的长度上限
+     * @param timeout       单次刷新的超时时间
+     * @param unit          超时时间单位
+     */
+    public RefreshExecutor(String name, int threads, int queueCapacity, long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive: %s", threads);
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive: %s", queueCapacity);
+        Preconditions.checkArgument(timeout > 0, "timeout must be positive: %s", timeout);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor = MoreExecutors.listeningDecorator(pool);
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-timeout").setDaemon(true).build());
+        this.timeout = timeout;
+        this.timeoutUnit = unit;
+    }
+
+    /**
+     * 异步刷新一个键
+     * 如果owner的该键已经在刷新中，返回正在执行的那一次刷新；如果队列已满，直接返回旧值
+     * owner通常是发起刷新的CacheLoader，同一个owner的刷新结果类型必须相同
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> ListenableFuture<V> refresh(Object owner, K key, V oldValue, Callable<V> loader) {
+        final RefreshKey refreshKey = new RefreshKey(Preconditions.checkNotNull(owner), key);
+        final SettableFuture<V> placeholder = SettableFuture.create();
+        ListenableFuture<?> existing = inFlight.putIfAbsent(refreshKey, placeholder);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return (ListenableFuture<V>) existing;
+        }
+
+        ListenableFuture<V> task;
+        try {
+            task = executor.submit(loader);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            inFlight.remove(refreshKey, placeholder);
+            placeholder.set(oldValue);
+            return placeholder;
+        }
+        startedCount.incrementAndGet();
+
+        ListenableFuture<V> timed = Futures.withTimeout(task, timeout, timeoutUnit, timer);
+        Futures.addCallback(timed, new FutureCallback<V>() {
+            public void onSuccess(V result) {
+            }
+
+            public void onFailure(Throwable t) {
+                failedCount.incrementAndGet();
+            }
+        }, MoreExecutors.directExecutor());
+        placeholder.setFuture(timed);
+        placeholder.addListener(new Runnable() {
+            public void run() {
+                inFlight.remove(refreshKey, placeholder);
+            }
+        }, MoreExecutors.directExecutor());
+        return placeholder;
+    }
+
+    /**
+     * 把一个同步的CacheLoader装饰为使用该线程池异步reload的CacheLoader
+     */
+    public <K, V> CacheLoader<K, V> asyncReloading(final CacheLoader<K, V> loader) {
+        return new CacheLoader<K, V>() {
+            public V load(K key) throws Exception {
+                return loader.load(key);
+            }
+
+            public ListenableFuture<V> reload(final K key, V oldValue) {
+                return refresh(this, key, oldValue, new Callable<V>() {
+                    public V call() throws Exception {
+                        return loader.load(key);
+                    }
+                });
+            }
+        };
+    }
+
+    // 已提交执行的刷新次数
+    public long startedCount() {
+        return startedCount.get();
+    }
+
+    // 合并到已有刷新的次数
+    public long coalescedCount() {
+        return coalescedCount.get();
+    }
+
+    // 因队列已满被拒绝的次数
+    public long rejectedCount() {
+        return rejectedCount.get();
+    }
+
+    // 执行失败或超时的次数
+    public long failedCount() {
+        return failedCount.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        timer.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RefreshExecutor{started=%d, coalesced=%d, rejected=%d, failed=%d}",
+                startedCount(), coalescedCount(), rejectedCount(), failedCount());
+    }
+
+    /**
+     * 合并刷新的键，owner按引用比较
+     */
+    private static final class RefreshKey {
+        private final Object owner;
+        private final Object key;
+
+        RefreshKey(Object owner, Object key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RefreshKey)) {
+                return false;
+            }
+            RefreshKey that = (RefreshKey) o;
+            return owner == that.owner && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + key.hashCode();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ch03_caches;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NearCache背后的键值存储，例如远程的缓存集群或数据库
+ * 每次写入或删除都会分配一个新的版本号，并向订阅者发送失效消息，失效消息可以成批发送
+ **/
+public interface RemoteStore<K, V> {
+
+    /**
+     * 读取一个键，不存在时返回null
+     */
+    Versioned<V> get(K key);
+
+    /**
+     * 在一次往返中读取多个键，结果中不包含不存在的键
+     */
+    Map<K, Versioned<V>> getAll(Iterable<? extends K> keys);
+
+    /**
+     * 写入一个键，返回新的版本号
+     */
+    long put(K key, V value);
+
+    /**
+     * 删除一个键，返回删除操作的版本号
+     */
+    long remove(K key);
+
+    /**
+     * 订阅失效消息
+     */
+    void addInvalidationListener(InvalidationListener<K> listener);
+
+    /**
+     * 接收一批失效消息
+     */
+    interface InvalidationListener<K> {
+        void onInvalidation(List<Invalidation<K>> invalidations);
+    }
+
+    /**
+     * 一条失效消息：键在version版本被修改或删除，缓存中比它旧的值都已失效
+     */
+    final class Invalidation<K> {
+        private final K key;
+        private final long version;
+
+        public Invalidation(K key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+
+        public K key() {
+            return key;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("key", key)
+                    .add("version", version)
+                    .toString();
+        }
+    }
+}
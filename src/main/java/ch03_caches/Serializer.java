@@ -0,0 +1,62 @@
+package ch03_caches;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * 缓存值的序列化方式，用于把缓存项写到堆外或文件中
+ **/
+public interface Serializer<T> {
+
+    byte[] serialize(T value);
+
+    /**
+     * 从buffer的当前位置读取buffer.remaining()个字节并还原
+     */
+    T deserialize(ByteBuffer buffer);
+
+    /**
+     * int值，固定4个字节
+     */
+    static Serializer<Integer> ints() {
+        return new Serializer<Integer>() {
+            public byte[] serialize(Integer value) {
+                return ByteBuffer.allocate(4).putInt(value).array();
+            }
+
+            public Integer deserialize(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        };
+    }
+
+    /**
+     * 使用Java序列化，适用于任何Serializable对象，但结果较大、速度较慢
+     */
+    static <T extends Serializable> Serializer<T> java() {
+        return new Serializer<T>() {
+            public byte[] serialize(T value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return bytes.toByteArray();
+            }
+
+            @SuppressWarnings("unchecked")
+            public T deserialize(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (T) in.readObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
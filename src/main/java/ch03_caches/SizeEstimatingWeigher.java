@@ -0,0 +1,32 @@
+package ch03_caches;
+
+import com.google.common.cache.Weigher;
+import com.google.common.primitives.Ints;
+
+/**
+ * 按估算的内存占用(字节)计算权重的Weigher
+ *
+ * 权重为键和值的retained size(由ObjectSizeEstimator估算)加上缓存内部每个缓存项的固定开销
+ * 配合maximumWeight使用时，maximumWeight就是缓存大致能占用的堆内存字节数
+ * 键和值共享的对象会被分别计算，结果偏大，不会低估内存占用
+ **/
+public final class SizeEstimatingWeigher<K, V> implements Weigher<K, V> {
+
+    // LocalCache中每个缓存项的近似开销：按访问顺序回收的缓存项对象约48字节，值引用对象16字节，哈希表中的一个槽4字节
+    private static final int ENTRY_OVERHEAD = 72;
+
+    private static final SizeEstimatingWeigher<Object, Object> INSTANCE = new SizeEstimatingWeigher<>();
+
+    private SizeEstimatingWeigher() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> SizeEstimatingWeigher<K, V> create() {
+        return (SizeEstimatingWeigher<K, V>) INSTANCE;
+    }
+
+    @Override
+    public int weigh(K key, V value) {
+        return Ints.saturatedCast(ENTRY_OVERHEAD + ObjectSizeEstimator.sizeOf(key) + ObjectSizeEstimator.sizeOf(value));
+    }
+}
@@ -0,0 +1,344 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 支持stale-while-revalidate的缓存
+ *
+ * 用get(K, Callable)访问一个过期的缓存项时，CacheBuilder构建的缓存会让所有读线程等待重新计算
+ * StaleWhileRevalidateCache把缓存项的生命周期分为三段：
+ *  新鲜期(freshFor)内直接返回缓存值
+ *  宽限期(staleFor)内仍然返回旧值，同时在后台发起一次刷新，同一个键同时只有一个刷新
+ *  超过宽限期后同步加载，同一个键的并发加载合并为一次，其他线程等待这次加载的结果
+ * 加载失败时把异常作为否定结果缓存negativeTtl，期间的请求直接抛出该异常，不会反复调用失败的Callable
+ * 加载期间其他线程put或刷新写入了新鲜的值时，保留这个值，不写入否定结果
+ **/
+public class StaleWhileRevalidateCache<K, V> extends AbstractCache<K, V> {
+
+    private final long freshNanos;
+    private final long staleNanos;
+    private final long negativeNanos;
+    private final Ticker ticker;
+    private final Executor executor;
+
+    private final Cache<K, Entry<V>> data;
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    // 正在后台刷新的键
+    private final Set<K> refreshing = Sets.newConcurrentHashSet();
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    private StaleWhileRevalidateCache(Builder<K, V> builder) {
+        this.freshNanos = builder.freshNanos;
+        this.staleNanos = builder.staleNanos;
+        this.negativeNanos = builder.negativeNanos;
+        this.ticker = builder.ticker;
+        this.executor = builder.executor;
+
+        // 超过宽限期和否定结果的有效期后，缓存项对读操作已经不可见，交给底层缓存回收
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(freshNanos + staleNanos, negativeNanos), TimeUnit.NANOSECONDS)
+                .ticker(ticker);
+        if (builder.maximumSize >= 0) {
+            cacheBuilder.maximumSize(builder.maximumSize);
+        }
+        this.data = cacheBuilder.build();
+    }
+
+    public static <K, V> Builder<K, V> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * StaleWhileRevalidateCache的构建器，必须设置freshFor
+     */
+    public static class Builder<K, V> {
+        private long maximumSize = -1;
+        private long freshNanos = -1;
+        private long staleNanos = 0;
+        private long negativeNanos = 0;
+        private Ticker ticker = Ticker.systemTicker();
+        private Executor executor = ForkJoinPool.commonPool();
+
+        private Builder() {
+        }
+
+        public Builder<K, V> maximumSize(long maximumSize) {
+            Preconditions.checkArgument(maximumSize >= 0, "maximumSize cannot be negative: %s", maximumSize);
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        // 缓存项写入后在给定时间内是新鲜的
+        public Builder<K, V> freshFor(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive: %s %s", duration, unit);
+            this.freshNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // 新鲜期过后，在给定时间内继续返回旧值并在后台刷新，默认为0，即不返回旧值
+        public Builder<K, V> staleFor(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.staleNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // 加载失败的结果缓存给定时间，默认为0，即不缓存失败
+        public Builder<K, V> negativeTtl(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.negativeNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Preconditions.checkNotNull(ticker);
+            return this;
+        }
+
+        // 执行后台刷新的线程池，默认为ForkJoinPool.commonPool()
+        public Builder<K, V> executor(Executor executor) {
+            this.executor = Preconditions.checkNotNull(executor);
+            return this;
+        }
+
+        public <K1 extends K, V1 extends V> StaleWhileRevalidateCache<K1, V1> build() {
+            Preconditions.checkState(freshNanos > 0, "freshFor must be set");
+            @SuppressWarnings("unchecked")
+            Builder<K1, V1> self = (Builder<K1, V1>) this;
+            return new StaleWhileRevalidateCache<>(self);
+        }
+    }
+
+    /**
+     * 缓存的值或加载失败的异常，以及写入时间
+     */
+    private static final class Entry<V> {
+        final V value;
+        final Throwable failure;
+        final long writeTime;
+
+        Entry(V value, Throwable failure, long writeTime) {
+            this.value = value;
+            this.failure = failure;
+            this.writeTime = writeTime;
+        }
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        Entry<V> entry = data.getIfPresent(key);
+        if (entry != null && entry.failure == null && ticker.read() - entry.writeTime < freshNanos + staleNanos) {
+            statsCounter.recordHits(1);
+            return entry.value;
+        }
+        statsCounter.recordMisses(1);
+        return null;
+    }
+
+    @Override
+    public V get(K key, Callable<? extends V> loader) throws ExecutionException {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(loader);
+        Entry<V> entry = data.getIfPresent(key);
+        if (entry != null) {
+            long age = ticker.read() - entry.writeTime;
+            if (entry.failure != null) {
+                if (age < negativeNanos) {
+                    statsCounter.recordHits(1);
+                    negativeHitCount.incrementAndGet();
+                    throw rethrow(entry.failure);
+                }
+            } else if (age < freshNanos) {
+                statsCounter.recordHits(1);
+                return entry.value;
+            } else if (age < freshNanos + staleNanos) {
+                statsCounter.recordHits(1);
+                staleHitCount.incrementAndGet();
+                refreshAsync(key, entry, loader);
+                return entry.value;
+            }
+        }
+        statsCounter.recordMisses(1);
+        return load(key, loader);
+    }
+
+    // 同步加载，同一个键的并发加载合并为一次
+    private V load(K key, final Callable<? extends V> loader) throws ExecutionException {
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.call();
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            return getLoaded(existing);
+        }
+
+        long start = ticker.read();
+        try {
+            task.run();
+            V value;
+            try {
+                value = Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException e) {
+                statsCounter.recordLoadException(ticker.read() - start);
+                if (negativeNanos > 0) {
+                    putFailure(key, e.getCause());
+                }
+                throw rethrow(e.getCause());
+            }
+            if (value == null) {
+                statsCounter.recordLoadException(ticker.read() - start);
+                throw new InvalidCacheLoadException("Callable returned null for key " + key + ".");
+            }
+            long end = ticker.read();
+            statsCounter.recordLoadSuccess(end - start);
+            data.put(key, new Entry<>(value, null, end));
+            return value;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    // 只在键不存在或已有的缓存项不再新鲜时写入否定结果，加载期间并发的put或刷新写入的新值不会被失败覆盖
+    private void putFailure(K key, Throwable failure) {
+        Entry<V> negative = new Entry<>(null, failure, ticker.read());
+        ConcurrentMap<K, Entry<V>> map = data.asMap();
+        while (true) {
+            Entry<V> current = map.get(key);
+            if (current == null) {
+                if (map.putIfAbsent(key, negative) == null) {
+                    return;
+                }
+            } else if (current.failure == null && negative.writeTime - current.writeTime < freshNanos) {
+                return;
+            } else if (map.replace(key, current, negative)) {
+                return;
+            }
+        }
+    }
+
+    // 在后台刷新一个处于宽限期的键，刷新失败时保留旧值，直到宽限期结束
+    private void refreshAsync(final K key, final Entry<V> stale, final Callable<? extends V> loader) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long start = ticker.read();
+                    try {
+                        V value = loader.call();
+                        if (value == null) {
+                            throw new InvalidCacheLoadException("Callable returned null for key " + key + ".");
+                        }
+                        long end = ticker.read();
+                        statsCounter.recordLoadSuccess(end - start);
+                        refreshCount.incrementAndGet();
+                        // 只替换发起刷新时的旧值，刷新期间键被清除或覆盖时丢弃刷新结果
+                        data.asMap().replace(key, stale, new Entry<>(value, null, end));
+                    } catch (Exception e) {
+                        statsCounter.recordLoadException(ticker.read() - start);
+                        refreshFailureCount.incrementAndGet();
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 线程池已满，下一次访问时再尝试刷新
+            refreshing.remove(key);
+        }
+    }
+
+    // 等待其他线程的加载结果
+    private V getLoaded(FutureTask<V> task) throws ExecutionException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    // 按Guava Cache的约定包装加载过程中的异常，非受检异常直接抛出，受检异常包装后返回给调用方抛出
+    private static ExecutionException rethrow(Throwable cause) {
+        if (cause instanceof Error) {
+            throw new ExecutionError((Error) cause);
+        } else if (cause instanceof RuntimeException) {
+            throw new UncheckedExecutionException(cause);
+        }
+        return new ExecutionException(cause);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        data.put(key, new Entry<>(value, null, ticker.read()));
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        data.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        data.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public void cleanUp() {
+        data.cleanUp();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    // 在宽限期内返回旧值的次数
+    public long staleHitCount() {
+        return staleHitCount.get();
+    }
+
+    // 直接返回缓存的失败结果的次数
+    public long negativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    // 后台刷新成功的次数
+    public long refreshCount() {
+        return refreshCount.get();
+    }
+
+    // 后台刷新失败的次数
+    public long refreshFailureCount() {
+        return refreshFailureCount.get();
+    }
+}
@@ -0,0 +1,141 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 两级缓存：堆内Cache + 堆外存储
+ *
+ * 基于容量(maximumSize/maximumWeight)从堆内缓存回收的缓存项不会被丢弃，而是序列化后写入堆外存储
+ * 堆内未命中时先查堆外，命中则反序列化并放回堆内(晋升)，两层都未命中才调用CacheLoader
+ * 这样堆内缓存可以设置得较小，减轻GC压力，又不至于让大量缓存项回到加载器
+ *
+ * 过期、显式清除、替换的缓存项不会进入堆外存储
+ **/
+public class TieredCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private final Cache<K, V> heap;
+    private final OffHeapStore<K, V> offHeap;
+    private final CacheLoader<? super K, V> loader;
+
+    private final AtomicLong offHeapHitCount = new AtomicLong();
+    private final AtomicLong offHeapMissCount = new AtomicLong();
+
+    private TieredCache(CacheBuilder<Object, Object> heapBuilder, int offHeapCapacityBytes,
+                        Serializer<V> serializer, CacheLoader<? super K, V> loader) {
+        this.offHeap = new OffHeapStore<>(offHeapCapacityBytes, serializer);
+        this.loader = loader;
+        this.heap = heapBuilder
+                .recordStats()
+                .removalListener(new RemovalListener<K, V>() {
+                    public void onRemoval(RemovalNotification<K, V> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            offHeap.put(notification.getKey(), notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * create会在heapBuilder上调用recordStats()和removalListener(...)，也就是修改调用方传入的builder
+     * CacheBuilder不能复制，也不能重复设置removalListener，所以每个TieredCache都应传入一个新的builder，之后不要再使用它
+     *
+     * @param heapBuilder          堆内缓存的配置，应当设置maximumSize或maximumWeight，不能设置removalListener，会被修改
+     * @param offHeapCapacityBytes 堆外存储的字节数
+     * @param serializer           值的序列化方式
+     * @param loader               两层都未命中时使用的加载器
+     */
+    public static <K, V> TieredCache<K, V> create(CacheBuilder<Object, Object> heapBuilder, int offHeapCapacityBytes,
+                                                  Serializer<V> serializer, CacheLoader<? super K, V> loader) {
+        Preconditions.checkNotNull(heapBuilder);
+        Preconditions.checkNotNull(loader);
+        return new TieredCache<>(heapBuilder, offHeapCapacityBytes, serializer, loader);
+    }
+
+    @Override
+    public V get(final K key) throws ExecutionException {
+        return heap.get(key, new Callable<V>() {
+            public V call() throws Exception {
+                V value = offHeap.remove(key);
+                if (value != null) {
+                    offHeapHitCount.incrementAndGet();
+                    return value;
+                }
+                offHeapMissCount.incrementAndGet();
+                return loader.load(key);
+            }
+        });
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        V value = heap.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        value = offHeap.remove(key);
+        if (value != null) {
+            offHeapHitCount.incrementAndGet();
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            heap.put(k, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        offHeap.invalidate(key);
+        heap.put(key, value);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        heap.invalidate(key);
+        offHeap.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        heap.invalidateAll();
+        offHeap.clear();
+    }
+
+    @Override
+    public long size() {
+        return heap.size() + offHeap.size();
+    }
+
+    @Override
+    public void cleanUp() {
+        heap.cleanUp();
+    }
+
+    /**
+     * 堆内缓存的统计
+     */
+    @Override
+    public CacheStats stats() {
+        return heap.stats();
+    }
+
+    /**
+     * 包含堆外层命中次数的统计
+     */
+    public TieredCacheStats tieredStats() {
+        return new TieredCacheStats(heap.stats(), offHeapHitCount.get(), offHeapMissCount.get(),
+                offHeap.evictionCount(), offHeap.size(), offHeap.usedBytes());
+    }
+}
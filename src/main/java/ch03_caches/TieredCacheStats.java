@@ -0,0 +1,78 @@
+package ch03_caches;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.CacheStats;
+
+/**
+ * TieredCache的统计信息
+ * CacheStats是final类，无法扩展，这里把堆内缓存的CacheStats和堆外层的计数放在一起
+ **/
+public final class TieredCacheStats {
+
+    private final CacheStats heapStats;
+    private final long offHeapHitCount;
+    private final long offHeapMissCount;
+    private final long offHeapEvictionCount;
+    private final long offHeapSize;
+    private final long offHeapBytes;
+
+    TieredCacheStats(CacheStats heapStats, long offHeapHitCount, long offHeapMissCount,
+                     long offHeapEvictionCount, long offHeapSize, long offHeapBytes) {
+        this.heapStats = heapStats;
+        this.offHeapHitCount = offHeapHitCount;
+        this.offHeapMissCount = offHeapMissCount;
+        this.offHeapEvictionCount = offHeapEvictionCount;
+        this.offHeapSize = offHeapSize;
+        this.offHeapBytes = offHeapBytes;
+    }
+
+    // 堆内缓存的统计，堆内未命中但堆外命中的请求也算作堆内的miss
+    public CacheStats heapStats() {
+        return heapStats;
+    }
+
+    public long heapHitCount() {
+        return heapStats.hitCount();
+    }
+
+    // 堆内未命中、从堆外取回的次数
+    public long offHeapHitCount() {
+        return offHeapHitCount;
+    }
+
+    // 两层都未命中、需要调用CacheLoader的次数
+    public long offHeapMissCount() {
+        return offHeapMissCount;
+    }
+
+    // 两层合计的命中率
+    public double hitRate() {
+        long requests = heapStats.requestCount();
+        return requests == 0 ? 1.0 : (double) (heapStats.hitCount() + offHeapHitCount) / requests;
+    }
+
+    // 因为堆外空间不足被丢弃的缓存项数
+    public long offHeapEvictionCount() {
+        return offHeapEvictionCount;
+    }
+
+    public long offHeapSize() {
+        return offHeapSize;
+    }
+
+    public long offHeapBytes() {
+        return offHeapBytes;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("heapHitCount", heapHitCount())
+                .add("offHeapHitCount", offHeapHitCount)
+                .add("offHeapMissCount", offHeapMissCount)
+                .add("offHeapEvictionCount", offHeapEvictionCount)
+                .add("offHeapSize", offHeapSize)
+                .add("offHeapBytes", offHeapBytes)
+                .toString();
+    }
+}
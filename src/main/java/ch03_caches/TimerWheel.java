@@ -0,0 +1,175 @@
+package ch03_caches;
+
+/**
+ * 分层时间轮
+ * 用来管理缓存项的过期时间，加入、移除、重新调度一个缓存项都是O(1)的，过期时不需要扫描整个缓存
+ *
+ * 共5层，每层的一格(tick)覆盖的时间和格数如下：
+ *  第0层：2^26ns ≈ 67ms  x 64格 ≈ 4.3s
+ *  第1层：2^32ns ≈ 4.3s  x 64格 ≈ 4.6min
+ *  第2层：2^38ns ≈ 4.6min x 64格 ≈ 4.9h
+ *  第3层：2^44ns ≈ 4.9h  x 64格 ≈ 13d
+ *  第4层：溢出层，只有1格
+ * 缓存项按剩余时间放进能容纳它的最低一层，时间推进到高层的某一格时，其中的缓存项被重新分配(cascade)到更低的层
+ * 过期精度为第0层的一格，即约67ms
+ *
+ * 时间轮不是线程安全的，由调用方加锁
+ **/
+class TimerWheel<K, V> {
+
+    private static final int[] BUCKETS = {64, 64, 64, 64, 1};
+    private static final int[] SHIFT = {26, 32, 38, 44, 50};
+
+    /**
+     * 时间轮中的一个缓存项，同一格的缓存项组成一个双向链表
+     */
+    static class Node<K, V> {
+        final K key;
+        V value;
+        long deadline;
+        long writeTime;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    /**
+     * 缓存项到期时的回调
+     */
+    interface ExpirationHandler<K, V> {
+        void expire(Node<K, V> node);
+    }
+
+    // 每一格都是一个带哨兵的环形链表
+    private final Node<K, V>[][] wheel;
+    private long nanos;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long nanos) {
+        this.nanos = nanos;
+        this.wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < BUCKETS.length; i++) {
+            wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                Node<K, V> sentinel = new Node<>(null, null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * 按node.deadline把缓存项放进对应的格子，已经在时间轮中的缓存项会先被移除
+     */
+    void schedule(Node<K, V> node) {
+        if (node.isScheduled()) {
+            unlink(node);
+        }
+        Node<K, V> sentinel = findBucket(node.deadline);
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    /**
+     * 把缓存项从时间轮中移除
+     */
+    void deschedule(Node<K, V> node) {
+        if (node.isScheduled()) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * 把时间推进到currentNanos，所有到期的缓存项都会交给handler处理
+     */
+    void advance(long currentNanos, ExpirationHandler<K, V> handler) {
+        long previousNanos = nanos;
+        nanos = currentNanos;
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = previousNanos >>> SHIFT[i];
+            long currentTicks = currentNanos >>> SHIFT[i];
+            if (currentTicks <= previousTicks) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, handler);
+        }
+    }
+
+    // 处理第level层从previousTicks到previousTicks+delta之间的格子，未到期的缓存项重新分配到更低的层
+    private void expire(int level, long previousTicks, long delta, ExpirationHandler<K, V> handler) {
+        Node<K, V>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        long count = Math.min(delta + 1, buckets.length);
+        for (long i = 0; i < count; i++) {
+            Node<K, V> sentinel = buckets[(int) ((previousTicks + i) & mask)];
+            Node<K, V> node = sentinel.next;
+            // 先摘下整个链表，重新调度的缓存项可能会回到同一格
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node<K, V> next = node.next;
+                node.prev = null;
+                node.next = null;
+                if (node.deadline - nanos <= 0) {
+                    handler.expire(node);
+                } else {
+                    schedule(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 返回距离下一次需要推进时间轮的纳秒数，时间轮为空时返回Long.MAX_VALUE
+     * 返回值偏保守，到时推进后可能只是把缓存项重新分配到更低的层
+     */
+    long getExpirationDelay() {
+        long delay = Long.MAX_VALUE;
+        for (int i = 0; i < SHIFT.length; i++) {
+            Node<K, V>[] buckets = wheel[i];
+            long ticks = nanos >>> SHIFT[i];
+            int mask = buckets.length - 1;
+            for (int j = 0; j < buckets.length; j++) {
+                Node<K, V> sentinel = buckets[(int) ((ticks + j) & mask)];
+                if (sentinel.next != sentinel) {
+                    // 第0层的一格在时间越过它之后才会过期，更高的层在到达下一格时就要重新分配
+                    long tick = (i == 0) ? ticks + j + 1 : ticks + 1;
+                    delay = Math.min(delay, (tick << SHIFT[i]) - nanos);
+                    break;
+                }
+            }
+        }
+        return delay;
+    }
+
+    private Node<K, V> findBucket(long deadline) {
+        long duration = deadline - nanos;
+        for (int i = 0; i < SHIFT.length - 1; i++) {
+            if (duration < (1L << SHIFT[i + 1])) {
+                // 已经过期的缓存项放进当前格，下一次推进时处理
+                long ticks = Math.max(deadline, nanos) >>> SHIFT[i];
+                return wheel[i][(int) (ticks & (BUCKETS[i] - 1))];
+            }
+        }
+        return wheel[SHIFT.length - 1][0];
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+}
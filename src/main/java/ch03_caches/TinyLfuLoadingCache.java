@@ -0,0 +1,404 @@
+package ch03_caches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.AbstractCache.StatsCounter;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 带W-TinyLFU准入策略的LoadingCache
+ *
+ * CacheBuilder.maximumSize()的回收近似LRU，每个新加载的缓存项都会被放进缓存，一次扫描就可以把热点数据全部挤出去
+ * W-TinyLFU的结构如下：
+ *  窗口区(window)：容量的1%，普通的LRU，新缓存项先进入窗口区
+ *  主区(main)：分段LRU，分为试用区(probation)和保护区(protected, 主区的80%)，在试用区再次命中的缓存项晋升到保护区
+ *  准入过滤：窗口区淘汰出的候选项只有在访问频率(由FrequencySketch估计)高于试用区的淘汰项时才进入主区
+ *
+ * 三个区和FrequencySketch都由整个缓存的一把锁保护，每次命中都要获取这把锁(lookup)，
+ * 不像CacheBuilder构建的缓存那样分段加锁，多个线程频繁读取时会在这把锁上竞争
+ * 加载在锁外进行，同一个键的并发加载合并为一次
+ *
+ * refresh(key)在调用线程中同步执行CacheLoader.reload(缓存中没有这个键时为load)，
+ * 等待返回的Future完成后写入新值；刷新失败时保留旧值，异常只记录日志
+ * asMap()是缓存的视图，读写直接作用于缓存，但它的迭代器遍历的是调用iterator()时的快照
+ **/
+public class TinyLfuLoadingCache<K, V> extends AbstractLoadingCache<K, V> {
+
+    private static final Logger logger = Logger.getLogger(TinyLfuLoadingCache.class.getName());
+
+    private final CacheLoader<? super K, V> loader;
+    private final int windowMaximum;
+    private final int mainMaximum;
+    private final int protectedMaximum;
+
+    // 三个区都按访问顺序排列，最老的缓存项在最前面
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    // 正在加载的键，同一个键同时只会加载一次
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+    private final ConcurrentMap<K, V> asMap = new AsMapView();
+
+    private TinyLfuLoadingCache(int maximumSize, CacheLoader<? super K, V> loader) {
+        Preconditions.checkArgument(maximumSize > 1, "maximumSize must be greater than 1: %s", maximumSize);
+        this.loader = Preconditions.checkNotNull(loader);
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.mainMaximum = maximumSize - windowMaximum;
+        this.protectedMaximum = (int) (mainMaximum * 0.8);
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * 创建一个最多保存maximumSize个缓存项的缓存
+     */
+    public static <K, V> TinyLfuLoadingCache<K, V> create(int maximumSize, CacheLoader<? super K, V> loader) {
+        return new TinyLfuLoadingCache<>(maximumSize, loader);
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        V value = lookup(key);
+        if (value == null) {
+            statsCounter.recordMisses(1);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        return value;
+    }
+
+    @Override
+    public V get(final K key) throws ExecutionException {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            return getLoaded(existing);
+        }
+
+        long start = System.nanoTime();
+        try {
+            task.run();
+            value = getLoaded(task);
+            if (value == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, value);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+            return value;
+        } catch (RuntimeException | ExecutionException | Error e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw e;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    // 按Guava Cache的约定包装加载过程中的异常
+    private V getLoaded(FutureTask<V> task) throws ExecutionException {
+        try {
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw new ExecutionError((Error) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw new UncheckedExecutionException(cause);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void put(K key, V value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        if (window.containsKey(key)) {
+            window.put(key, value);
+        } else if (probation.containsKey(key)) {
+            probation.put(key, value);
+        } else if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, value);
+        } else {
+            window.put(key, value);
+            if (window.size() > windowMaximum) {
+                Map.Entry<K, V> candidate = removeEldest(window);
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void refresh(K key) {
+        Preconditions.checkNotNull(key);
+        V oldValue = peek(key);
+        long start = System.nanoTime();
+        try {
+            V value = oldValue == null
+                    ? loader.load(key)
+                    : Uninterruptibles.getUninterruptibly(loader.reload(key, oldValue));
+            if (value == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + key + ".");
+            }
+            put(key, value);
+            statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        } catch (Exception e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            logger.log(Level.WARNING, "Exception thrown during refresh", e);
+        }
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        return asMap;
+    }
+
+    // 窗口区淘汰出的候选项与试用区的淘汰项比较访问频率，频率高的留下
+    private void admit(K candidateKey, V candidateValue) {
+        if (probation.size() + protectedSegment.size() < mainMaximum) {
+            probation.put(candidateKey, candidateValue);
+            return;
+        }
+        LinkedHashMap<K, V> victims = probation.isEmpty() ? protectedSegment : probation;
+        K victimKey = victims.keySet().iterator().next();
+        if (sketch.frequency(candidateKey) > sketch.frequency(victimKey)) {
+            victims.remove(victimKey);
+            probation.put(candidateKey, candidateValue);
+        }
+        statsCounter.recordEviction();
+    }
+
+    private synchronized V lookup(Object key) {
+        sketch.increment(key);
+        V value = window.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            // 在试用区再次命中，晋升到保护区，保护区满时把最老的缓存项降回试用区
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            protectedSegment.put(k, value);
+            if (protectedSegment.size() > protectedMaximum) {
+                Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+        return value;
+    }
+
+    // 不增加访问频率，也不把试用区的缓存项晋升到保护区
+    private synchronized V peek(Object key) {
+        V value = window.get(key);
+        if (value == null) {
+            value = probation.get(key);
+        }
+        if (value == null) {
+            value = protectedSegment.get(key);
+        }
+        return value;
+    }
+
+    private static <K, V> Map.Entry<K, V> removeEldest(LinkedHashMap<K, V> map) {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        Map.Entry<K, V> eldest = iterator.next();
+        Map.Entry<K, V> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+    @Override
+    public synchronized void invalidate(Object key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    @Override
+    public synchronized long size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    /**
+     * asMap()返回的视图，复合操作在缓存的锁中完成
+     */
+    private final class AsMapView extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        @Override
+        public V get(Object key) {
+            return key == null ? null : lookup(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key != null && peek(key) != null;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            synchronized (TinyLfuLoadingCache.this) {
+                V oldValue = peek(key);
+                TinyLfuLoadingCache.this.put(key, value);
+                return oldValue;
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            synchronized (TinyLfuLoadingCache.this) {
+                V oldValue = peek(key);
+                if (oldValue == null) {
+                    TinyLfuLoadingCache.this.put(key, value);
+                }
+                return oldValue;
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            synchronized (TinyLfuLoadingCache.this) {
+                V oldValue = peek(key);
+                invalidate(key);
+                return oldValue;
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            synchronized (TinyLfuLoadingCache.this) {
+                V oldValue = peek(key);
+                if (oldValue == null || !oldValue.equals(value)) {
+                    return false;
+                }
+                invalidate(key);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            Preconditions.checkNotNull(oldValue);
+            synchronized (TinyLfuLoadingCache.this) {
+                V current = peek(key);
+                if (current == null || !current.equals(oldValue)) {
+                    return false;
+                }
+                TinyLfuLoadingCache.this.put(key, newValue);
+                return true;
+            }
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            synchronized (TinyLfuLoadingCache.this) {
+                V oldValue = peek(key);
+                if (oldValue != null) {
+                    TinyLfuLoadingCache.this.put(key, value);
+                }
+                return oldValue;
+            }
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(TinyLfuLoadingCache.this.size(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public int size() {
+                    return AsMapView.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    final Iterator<Entry<K, V>> snapshot = snapshot().iterator();
+                    return new Iterator<Entry<K, V>>() {
+                        private Entry<K, V> last;
+
+                        public boolean hasNext() {
+                            return snapshot.hasNext();
+                        }
+
+                        public Entry<K, V> next() {
+                            last = snapshot.next();
+                            return last;
+                        }
+
+                        public void remove() {
+                            Preconditions.checkState(last != null, "no calls to next() since the last call to remove()");
+                            AsMapView.this.remove(last.getKey(), last.getValue());
+                            last = null;
+                        }
+                    };
+                }
+            };
+        }
+
+        // 遍历LinkedHashMap不会改变访问顺序
+        private List<Entry<K, V>> snapshot() {
+            synchronized (TinyLfuLoadingCache.this) {
+                List<Entry<K, V>> entries = new ArrayList<>((int) TinyLfuLoadingCache.this.size());
+                for (LinkedHashMap<K, V> segment : Arrays.asList(window, probation, protectedSegment)) {
+                    for (Entry<K, V> entry : segment.entrySet()) {
+                        entries.add(new SimpleImmutableEntry<>(entry));
+                    }
+                }
+                return entries;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ch03_caches;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * 带版本号的值，版本号由存储在每次写入时单调递增地分配
+ **/
+public final class Versioned<V> {
+
+    private final V value;
+    private final long version;
+
+    public Versioned(V value, long version) {
+        this.value = Preconditions.checkNotNull(value);
+        this.version = version;
+    }
+
+    public V value() {
+        return value;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("value", value)
+                .add("version", version)
+                .toString();
+    }
+}
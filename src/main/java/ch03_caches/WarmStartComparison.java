@@ -0,0 +1,72 @@
+package ch03_caches;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 比较冷启动与从快照预热后的命中率
+ * 先用Zipf访问轨迹填满一个缓存并保存快照，模拟重启后分别用空缓存和预热后的缓存处理后续请求
+ * 每10000个请求统计一次命中率，直到进入稳定状态
+ **/
+public class WarmStartComparison {
+
+    private static final int WINDOW = 10_000;
+
+    public static void main(String args[]) throws Exception {
+        int[] trace = AdmissionTraceComparison.zipfTrace(new Random(42), 100_000, 600_000);
+        File file = File.createTempFile("cache", ".snapshot");
+        file.deleteOnExit();
+
+        // 重启前
+        Cache<Integer, Integer> before = newCache();
+        run(before, trace, 0, 300_000);
+        int saved = CacheSnapshot.save(before, file, Serializer.ints(), Serializer.ints());
+
+        // 重启后
+        Cache<Integer, Integer> cold = newCache();
+        Cache<Integer, Integer> warm = newCache();
+        ExecutorService decoders = Executors.newFixedThreadPool(4);
+        long start = System.nanoTime();
+        int restored = CacheSnapshot.restore(warm, file, Serializer.ints(), Serializer.ints(), 10_000, decoders);
+        long restoreMicros = (System.nanoTime() - start) / 1000;
+        decoders.shutdown();
+
+        // saved: 10000, restored: 10000 in 124742us
+        System.out.println(String.format("saved: %d, restored: %d in %dus", saved, restored, restoreMicros));
+        // window   cold    warm
+        // 1       55.73%  71.55%
+        // 2       66.33%  71.27%
+        // 3       71.42%  72.15%
+        // 4       72.43%  72.43%
+        System.out.println("window   cold    warm");
+        for (int window = 0; window < 10; window++) {
+            int from = 300_000 + window * WINDOW;
+            double coldHitRate = run(cold, trace, from, from + WINDOW);
+            double warmHitRate = run(warm, trace, from, from + WINDOW);
+            System.out.println(String.format("%-6d %6.2f%% %6.2f%%", window + 1, coldHitRate * 100, warmHitRate * 100));
+        }
+    }
+
+    private static Cache<Integer, Integer> newCache() {
+        return CacheBuilder.newBuilder().maximumSize(10_000).build();
+    }
+
+    // 在缓存上重放trace[from, to)，返回命中率
+    private static double run(Cache<Integer, Integer> cache, int[] trace, int from, int to) {
+        int hits = 0;
+        for (int i = from; i < to; i++) {
+            Integer key = trace[i];
+            if (cache.getIfPresent(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / (to - from);
+    }
+}
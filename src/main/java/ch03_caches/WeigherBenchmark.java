@@ -0,0 +1,129 @@
+package ch03_caches;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Map;
+
+/**
+ * 比较SizeEstimatingWeigher与固定权重的Weigher每次put的开销，并检查估算值与实际堆内存增长的差距
+ * 值分别为字符串、Integer列表和包含数组的嵌套对象，每种值写入50000个缓存项
+ * 实际内存增长通过GC后Runtime的已用内存估算，结果有一定抖动
+ **/
+public class WeigherBenchmark {
+
+    private static final int ENTRIES = 50_000;
+
+    /**
+     * 嵌套对象的示例：对象中引用字符串和数组
+     */
+    static final class Profile {
+        final String name;
+        final long[] scores;
+        final ImmutableList<String> tags;
+
+        Profile(int id) {
+            this.name = "user-" + id;
+            this.scores = new long[8];
+            this.tags = ImmutableList.of("tag-" + (id % 10), "tag-" + (id % 7));
+        }
+    }
+
+    private interface ValueFactory {
+        Object create(int i);
+    }
+
+    public static void main(String args[]) {
+        ValueFactory strings = new ValueFactory() {
+            public Object create(int i) {
+                return "value-" + i + "-abcdefghijklmnopqrstuvwxyz";
+            }
+        };
+        ValueFactory lists = new ValueFactory() {
+            public Object create(int i) {
+                return ImmutableList.of(i, i + 1, i + 2, i + 3, i + 4);
+            }
+        };
+        ValueFactory profiles = new ValueFactory() {
+            public Object create(int i) {
+                return new Profile(i);
+            }
+        };
+        Weigher<Object, Object> constant = new Weigher<Object, Object>() {
+            public int weigh(Object key, Object value) {
+                return 1;
+            }
+        };
+        Weigher<Object, Object> estimating = SizeEstimatingWeigher.create();
+
+        // String          constant: 301ns/put, estimating: 267ns/put, estimated: 10.3MB, measured: 10.7MB
+        // ImmutableList   constant: 326ns/put, estimating: 955ns/put, estimated: 13.1MB, measured: 13.6MB
+        // Profile         constant: 276ns/put, estimating: 806ns/put, estimated: 21.1MB, measured: 21.6MB
+        report("String", constant, estimating, strings);
+        report("ImmutableList", constant, estimating, lists);
+        report("Profile", constant, estimating, profiles);
+    }
+
+    private static void report(String name, Weigher<Object, Object> constant, Weigher<Object, Object> estimating,
+                               ValueFactory factory) {
+        String[] keys = new String[ENTRIES];
+        Object[] values = new Object[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = "key-" + i;
+            values[i] = factory.create(i);
+        }
+
+        // 键和值预先创建好，只比较put本身，取多轮中最快的一轮
+        long constantNanos = Long.MAX_VALUE;
+        long estimatingNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            constantNanos = Math.min(constantNanos, putAll(newCache(constant), keys, values));
+            estimatingNanos = Math.min(estimatingNanos, putAll(newCache(estimating), keys, values));
+        }
+
+        // 缓存占用的内存包括键、值和缓存内部的结构
+        keys = null;
+        values = null;
+        long before = usedMemory();
+        Cache<Object, Object> cache = newCache(estimating);
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put("key-" + i, factory.create(i));
+        }
+        long measured = usedMemory() - before;
+
+        System.out.println(String.format("%-15s constant: %dns/put, estimating: %dns/put, estimated: %.1fMB, measured: %.1fMB",
+                name, constantNanos / ENTRIES, estimatingNanos / ENTRIES, totalWeight(cache) / 1e6, measured / 1e6));
+    }
+
+    private static long putAll(Cache<Object, Object> cache, String[] keys, Object[] values) {
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            cache.put(keys[i], values[i]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static Cache<Object, Object> newCache(Weigher<Object, Object> weigher) {
+        return CacheBuilder.newBuilder().maximumWeight(Long.MAX_VALUE).weigher(weigher).build();
+    }
+
+    // 重新计算所有缓存项的权重之和
+    private static long totalWeight(Cache<Object, Object> cache) {
+        Weigher<Object, Object> weigher = SizeEstimatingWeigher.create();
+        long total = 0;
+        for (Map.Entry<Object, Object> entry : cache.asMap().entrySet()) {
+            total += weigher.weigh(entry.getKey(), entry.getValue());
+        }
+        return total;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
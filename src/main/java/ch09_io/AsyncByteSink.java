@@ -0,0 +1,75 @@
+package ch09_io;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 异步的文件汇，由AsyncFiles.asByteSink创建
+ *
+ * 与ByteSink对应：write(byte[])、writeFrom(AsyncByteSource)
+ * AsynchronousFileChannel不支持APPEND，追加模式下在打开文件时取文件的长度作为写入的起始位置，
+ * 所以同一个文件上同时进行的多个追加操作会互相覆盖
+ **/
+public final class AsyncByteSink {
+
+    private final AsyncFiles files;
+    private final Path path;
+    private final boolean append;
+
+    AsyncByteSink(AsyncFiles files, Path path, boolean append) {
+        this.files = files;
+        this.path = path;
+        this.append = append;
+    }
+
+    /**
+     * 写入bytes，写入完成前不能修改bytes
+     */
+    public ListenableFuture<Void> write(byte[] bytes) {
+        return files.submit(() -> {
+            AsynchronousFileChannel channel = open();
+            try {
+                ListenableFuture<Void> future = Futures.transform(
+                        AsyncFiles.writeFully(channel, ByteBuffer.wrap(bytes), startPosition(channel)),
+                        n -> null,
+                        MoreExecutors.directExecutor());
+                AsyncFiles.closeWhenDone(future, channel);
+                return future;
+            } catch (Throwable e) {
+                channel.close();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * 写入source的全部内容，结果是写入的字节数
+     */
+    public ListenableFuture<Long> writeFrom(AsyncByteSource source) {
+        return source.copyTo(this);
+    }
+
+    AsynchronousFileChannel open() throws IOException {
+        if (append) {
+            return files.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return files.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    long startPosition(AsynchronousFileChannel channel) throws IOException {
+        return append ? channel.size() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncByteSink(" + path + (append ? ", APPEND" : "") + ")";
+    }
+}
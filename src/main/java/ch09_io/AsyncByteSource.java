@@ -0,0 +1,189 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 异步的文件源，由AsyncFiles.asByteSource创建
+ *
+ * 与ByteSource对应：read()、copyTo(AsyncByteSink)、slice(long, long)，
+ * 每次操作都重新打开文件，操作完成后关闭
+ **/
+public final class AsyncByteSource {
+
+    private final AsyncFiles files;
+    private final Path path;
+    private final long offset;
+    private final long length;
+
+    AsyncByteSource(AsyncFiles files, Path path, long offset, long length) {
+        this.files = files;
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * 与ByteSource.slice相同
+     */
+    public AsyncByteSource slice(long offset, long length) {
+        Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+        Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+        long start = Math.min(offset, this.length);
+        return new AsyncByteSource(files, path, this.offset + start, Math.min(length, this.length - start));
+    }
+
+    /**
+     * 读取全部内容
+     */
+    public ListenableFuture<byte[]> read() {
+        return files.submit(() -> {
+            AsynchronousFileChannel channel = files.open(path, StandardOpenOption.READ);
+            try {
+                long size = sizeIn(channel);
+                if (size > Integer.MAX_VALUE - 8) {
+                    throw new OutOfMemoryError(size + " bytes is too large to fit in a byte array");
+                }
+                byte[] bytes = new byte[(int) size];
+                ListenableFuture<byte[]> future = Futures.transform(
+                        AsyncFiles.readFully(channel, ByteBuffer.wrap(bytes), offset),
+                        n -> n == bytes.length ? bytes : Arrays.copyOf(bytes, n),
+                        MoreExecutors.directExecutor());
+                AsyncFiles.closeWhenDone(future, channel);
+                return future;
+            } catch (Throwable e) {
+                channel.close();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * 把全部内容复制到sink，结果是复制的字节数
+     */
+    public ListenableFuture<Long> copyTo(AsyncByteSink sink) {
+        return files.submit(() -> {
+            AsynchronousFileChannel in = files.open(path, StandardOpenOption.READ);
+            AsynchronousFileChannel out = null;
+            try {
+                out = sink.open();
+                ListenableFuture<Long> future = new PipelinedCopy(in, out, sizeIn(in), sink.startPosition(out)).start();
+                AsyncFiles.closeWhenDone(future, in, out);
+                return future;
+            } catch (Throwable e) {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+                throw e;
+            }
+        });
+    }
+
+    private long sizeIn(AsynchronousFileChannel channel) throws IOException {
+        return Math.min(length, Math.max(0, channel.size() - offset));
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncByteSource(" + path + ").slice(" + offset + ", " + length + ")";
+    }
+
+    /**
+     * 分块复制，最多pipelineDepth个块同时在读或写，每一块读完后立即写到目标文件的对应位置
+     * 各块写入的位置不同，完成的顺序不影响结果
+     */
+    private final class PipelinedCopy {
+        private final AsynchronousFileChannel in;
+        private final AsynchronousFileChannel out;
+        private final long size;
+        private final long target;
+        private final int chunkSize = files.chunkSize();
+        private final int chunkCount;
+        private final SettableFuture<Long> result = SettableFuture.create();
+
+        // 以下字段只在synchronized (this)内访问
+        private int nextChunk;
+        private int active;
+        private long copied;
+
+        PipelinedCopy(AsynchronousFileChannel in, AsynchronousFileChannel out, long size, long target) {
+            this.in = in;
+            this.out = out;
+            this.size = size;
+            this.target = target;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        ListenableFuture<Long> start() {
+            if (chunkCount == 0) {
+                result.set(0L);
+            }
+            for (int i = 0; i < files.pipelineDepth(); i++) {
+                startNextChunk();
+            }
+            return result;
+        }
+
+        private void startNextChunk() {
+            int chunk;
+            synchronized (this) {
+                // 失败或取消后不再开始新的块
+                if (nextChunk == chunkCount || result.isDone()) {
+                    return;
+                }
+                chunk = nextChunk++;
+                active++;
+            }
+            long position = (long) chunk * chunkSize;
+            int chunkLength = (int) Math.min(chunkSize, size - position);
+            BufferPool<ByteBuffer> pool = BufferPool.direct();
+            ByteBuffer buffer = pool.acquire(chunkLength);
+            buffer.limit(chunkLength);
+            ListenableFuture<Integer> written = Futures.transformAsync(
+                    AsyncFiles.readFully(in, buffer, offset + position),
+                    n -> {
+                        buffer.flip();
+                        return AsyncFiles.writeFully(out, buffer, target + position);
+                    },
+                    MoreExecutors.directExecutor());
+            Futures.addCallback(written, new FutureCallback<Integer>() {
+                public void onSuccess(Integer n) {
+                    pool.release(buffer);
+                    chunkCompleted(n);
+                }
+
+                public void onFailure(Throwable e) {
+                    pool.release(buffer);
+                    result.setException(e);
+                    chunkCompleted(0);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void chunkCompleted(long n) {
+            boolean done;
+            synchronized (this) {
+                active--;
+                copied += n;
+                done = active == 0 && nextChunk == chunkCount;
+            }
+            if (done) {
+                result.set(copied);
+            } else {
+                startNextChunk();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ch09_io;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 比较在一个线程中依次调用ByteSource.copyTo(ByteSink)与通过AsyncFiles同时提交所有复制的耗时
+ *
+ * 复制FILES个FILE_SIZE大小的文件，AsyncFiles分别限制同时进行的复制为1、4、16个
+ * submit是调用线程提交所有复制所用的CPU时间，也就是调用线程被占用的时间，total是全部复制完成的时间
+ * 只有一个CPU时，I/O线程会和调用线程争抢CPU，所以submit取CPU时间而不是经过的时间
+ * 每项测试取3轮中最快的一轮，文件已经在页缓存中，在NVMe上冷读时多个复制重叠的收益更大
+ **/
+public class AsyncCopyBenchmark {
+
+    private static final int FILES = 32;
+    private static final int FILE_SIZE = 8 << 20;
+    private static final int ROUNDS = 3;
+
+    public static void main(String args[]) throws Exception {
+        List<File> sources = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        byte[] block = new byte[1 << 20];
+        Random random = new Random(1);
+        for (int i = 0; i < FILES; i++) {
+            File source = File.createTempFile("async-source", ".bin");
+            File target = File.createTempFile("async-target", ".bin");
+            source.deleteOnExit();
+            target.deleteOnExit();
+            try (OutputStream out = Files.asByteSink(source).openStream()) {
+                for (int written = 0; written < FILE_SIZE; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block);
+                }
+            }
+            sources.add(source);
+            targets.add(target);
+        }
+
+        // 32 x 8MB, 1 CPU:
+        // ByteSource.copyTo          total: 288.8ms
+        // AsyncFiles(maxInFlight=1)  submit: 0.2ms, total: 354.6ms
+        // AsyncFiles(maxInFlight=4)  submit: 19.7ms, total: 253.8ms
+        // AsyncFiles(maxInFlight=16) submit: 17.2ms, total: 260.6ms
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < FILES; i++) {
+                Files.asByteSource(sources.get(i)).copyTo(Files.asByteSink(targets.get(i)));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        println(String.format("%-26s total: %.1fms", "ByteSource.copyTo", best / 1e6));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int maxInFlight : new int[]{1, 4, 16}) {
+            AsyncFiles files = AsyncFiles.newBuilder().maxInFlight(maxInFlight).build();
+            long bestSubmit = Long.MAX_VALUE;
+            long bestTotal = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                List<ListenableFuture<Long>> copies = new ArrayList<>();
+                for (int i = 0; i < FILES; i++) {
+                    copies.add(files.asByteSource(sources.get(i).toPath())
+                            .copyTo(files.asByteSink(targets.get(i).toPath())));
+                }
+                long submitted = threads.getCurrentThreadCpuTime() - cpuStart;
+                Futures.allAsList(copies).get();
+                bestSubmit = Math.min(bestSubmit, submitted);
+                bestTotal = Math.min(bestTotal, System.nanoTime() - start);
+            }
+            println(String.format("%-26s submit: %.1fms, total: %.1fms", "AsyncFiles(maxInFlight=" + maxInFlight + ")",
+                    bestSubmit / 1e6, bestTotal / 1e6));
+        }
+        verify(sources, targets);
+    }
+
+    private static void verify(List<File> sources, List<File> targets) throws IOException {
+        for (int i = 0; i < FILES; i++) {
+            if (!Files.equal(sources.get(i), targets.get(i))) {
+                throw new AssertionError("copy of " + sources.get(i) + " differs");
+            }
+        }
+    }
+
+    private static void println(Object object) {
+        System.out.println(object);
+    }
+}
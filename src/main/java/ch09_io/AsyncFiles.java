@@ -0,0 +1,280 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.FileWriteMode;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 基于AsynchronousFileChannel的异步文件源与汇，所有操作都返回ListenableFuture，调用线程不会阻塞在文件I/O上
+ *
+ * asByteSource和asByteSink创建的AsyncByteSource、AsyncByteSink共享这个AsyncFiles的配置：
+ *  maxInFlight：同时进行的操作(一次read、write或copyTo)的上限，超过上限的操作排队，前面的操作完成后再开始，
+ *               排队时不占用任何线程，一个线程可以提交任意多个复制；
+ *               所有操作都由一个共享的线程池开始，打开文件不在调用线程或I/O完成通知的线程中进行
+ *  chunkSize、pipelineDepth：copyTo把文件切成chunkSize大小的块，最多pipelineDepth个块同时在读或写，
+ *               一块读完后立即写出，同时其他块继续读取，读写互相重叠
+ *  executor：AsynchronousFileChannel处理I/O完成通知的线程池，默认使用JDK的默认线程池
+ * Future的回调在I/O完成通知的线程中执行，回调中不应该有耗时的操作
+ **/
+public final class AsyncFiles {
+
+    private final int maxInFlight;
+    private final int chunkSize;
+    private final int pipelineDepth;
+    private final ExecutorService executor;
+
+    // 开始排队的操作的线程，空闲的线程60秒后退出
+    private static final Executor STARTER = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("async-files-starter-%d")
+            .setDaemon(true)
+            .build());
+
+    // 以下字段只在synchronized (this)内访问
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight;
+    private boolean draining;
+
+    private AsyncFiles(Builder builder) {
+        this.maxInFlight = builder.maxInFlight;
+        this.chunkSize = builder.chunkSize;
+        this.pipelineDepth = builder.pipelineDepth;
+        this.executor = builder.executor;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxInFlight = 64;
+        private int chunkSize = 1 << 20;
+        private int pipelineDepth = 4;
+        private ExecutorService executor;
+
+        private Builder() {
+        }
+
+        // 同时进行的操作的上限，默认64
+        public Builder maxInFlight(int maxInFlight) {
+            Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive: %s", maxInFlight);
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        // copyTo每一块的大小，默认1MB
+        public Builder chunkSize(int chunkSize) {
+            Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive: %s", chunkSize);
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        // copyTo中同时在读或写的块数，默认4
+        public Builder pipelineDepth(int pipelineDepth) {
+            Preconditions.checkArgument(pipelineDepth > 0, "pipelineDepth must be positive: %s", pipelineDepth);
+            this.pipelineDepth = pipelineDepth;
+            return this;
+        }
+
+        // 处理I/O完成通知的线程池，默认使用AsynchronousFileChannel的默认线程池
+        public Builder executor(ExecutorService executor) {
+            this.executor = Preconditions.checkNotNull(executor);
+            return this;
+        }
+
+        public AsyncFiles build() {
+            return new AsyncFiles(this);
+        }
+    }
+
+    public AsyncByteSource asByteSource(Path path) {
+        return new AsyncByteSource(this, Preconditions.checkNotNull(path), 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * 与Files.asByteSink(File, FileWriteMode...)相同，默认覆盖原来的内容，指定APPEND时追加到文件末尾
+     */
+    public AsyncByteSink asByteSink(Path path, FileWriteMode... modes) {
+        return new AsyncByteSink(this, Preconditions.checkNotNull(path),
+                Arrays.asList(modes).contains(FileWriteMode.APPEND));
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    int pipelineDepth() {
+        return pipelineDepth;
+    }
+
+    AsynchronousFileChannel open(Path path, OpenOption... options) throws IOException {
+        Set<OpenOption> optionSet = new HashSet<>(Arrays.asList(options));
+        return AsynchronousFileChannel.open(path, optionSet, executor);
+    }
+
+    /**
+     * 把operation放进队列，在不超过maxInFlight的前提下由STARTER开始，否则等前面的操作完成
+     * 打开文件、取文件长度等阻塞操作总是在STARTER的线程中执行，调用线程只负责入队
+     */
+    <T> ListenableFuture<T> submit(AsyncCallable<T> operation) {
+        SettableFuture<T> result = SettableFuture.create();
+        Runnable start = () -> {
+            ListenableFuture<T> future;
+            try {
+                future = operation.call();
+            } catch (Throwable e) {
+                future = Futures.immediateFailedFuture(e);
+            }
+            result.setFuture(future);
+            future.addListener(this::finished, MoreExecutors.directExecutor());
+        };
+        synchronized (this) {
+            waiting.add(start);
+            // 正在drain的线程会继续开始排队的操作，名额已满时由finished开始
+            if (draining || inFlight >= maxInFlight) {
+                return result;
+            }
+        }
+        STARTER.execute(this::drain);
+        return result;
+    }
+
+    /**
+     * 操作完成时在I/O完成通知的线程中调用，排队的操作交给STARTER开始，
+     * 打开文件、取文件长度等阻塞操作不在I/O完成通知的线程中执行
+     */
+    private void finished() {
+        synchronized (this) {
+            inFlight--;
+            // 正在drain的线程会继续开始排队的操作
+            if (draining || waiting.isEmpty()) {
+                return;
+            }
+        }
+        STARTER.execute(this::drain);
+    }
+
+    /**
+     * 在名额允许时依次开始排队的操作，同一时刻只有一个线程在循环中
+     * 同步完成的操作(例如文件不存在)在循环中调用finished时只归还名额，由这个循环继续开始下一个，不会递归
+     */
+    private void drain() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (draining || inFlight >= maxInFlight || (next = waiting.poll()) == null) {
+                    return;
+                }
+                draining = true;
+                inFlight++;
+            }
+            try {
+                next.run();
+            } finally {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    // 正在进行的操作数
+    public synchronized int inFlightCount() {
+        return inFlight;
+    }
+
+    // 排队等待开始的操作数
+    public synchronized int queuedCount() {
+        return waiting.size();
+    }
+
+    /**
+     * 从position开始读满buffer或读到文件末尾，结果是读取的字节数
+     */
+    static ListenableFuture<Integer> readFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        SettableFuture<Integer> result = SettableFuture.create();
+        readFully(channel, buffer, position, 0, result);
+        return result;
+    }
+
+    private static void readFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position, int total,
+                                  SettableFuture<Integer> result) {
+        if (!buffer.hasRemaining()) {
+            result.set(total);
+            return;
+        }
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Object>() {
+            public void completed(Integer n, Object attachment) {
+                if (n < 0) {
+                    result.set(total);
+                } else {
+                    readFully(channel, buffer, position + n, total + n, result);
+                }
+            }
+
+            public void failed(Throwable e, Object attachment) {
+                result.setException(e);
+            }
+        });
+    }
+
+    /**
+     * 从position开始写出buffer中剩余的全部内容，结果是写出的字节数
+     */
+    static ListenableFuture<Integer> writeFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        SettableFuture<Integer> result = SettableFuture.create();
+        writeFully(channel, buffer, position, 0, result);
+        return result;
+    }
+
+    private static void writeFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position, int total,
+                                   SettableFuture<Integer> result) {
+        if (!buffer.hasRemaining()) {
+            result.set(total);
+            return;
+        }
+        channel.write(buffer, position, null, new CompletionHandler<Integer, Object>() {
+            public void completed(Integer n, Object attachment) {
+                writeFully(channel, buffer, position + n, total + n, result);
+            }
+
+            public void failed(Throwable e, Object attachment) {
+                result.setException(e);
+            }
+        });
+    }
+
+    /**
+     * future完成后关闭通道
+     */
+    static void closeWhenDone(ListenableFuture<?> future, AsynchronousFileChannel... channels) {
+        future.addListener(() -> {
+            for (AsynchronousFileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 操作已经完成，关闭失败不影响结果
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+}
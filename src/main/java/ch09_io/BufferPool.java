@@ -0,0 +1,191 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的缓冲区池，由线程本地和共享两层组成
+ *
+ * 缓冲区的容量按2的幂分级，从MIN_POOLED_SIZE(4KB)到MAX_POOLED_SIZE(1MB)，acquire(size)返回容量不小于size的最小一级，
+ * 超过MAX_POOLED_SIZE的请求直接分配，不放回池中
+ *  线程本地层：每个线程每一级最多缓存LOCAL_CAPACITY个不超过MAX_LOCAL_SIZE(64KB)的缓冲区，不需要任何同步
+ *  共享层：每一级一个有界队列，最多SHARED_CAPACITY个缓冲区，线程本地层满了的缓冲区放到这里，
+ *          一个线程释放的缓冲区可以被另一个线程取走
+ * 两层都满时释放的缓冲区直接丢弃，由GC回收，所以忘记release只会降低命中率，不会造成泄漏
+ *
+ * heap()池化byte[]，供基于流的复制和读取使用；direct()池化直接内存的ByteBuffer，供通道之间的复制使用，
+ * 直接内存的分配和回收比堆内存昂贵得多，更需要复用
+ * 缓冲区release之后不能再使用，池不会清零缓冲区的内容
+ **/
+public final class BufferPool<B> {
+
+    static final int MIN_SHIFT = 12;
+    static final int MAX_SHIFT = 20;
+    public static final int MIN_POOLED_SIZE = 1 << MIN_SHIFT;
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+    static final int MAX_LOCAL_SIZE = 64 << 10;
+    static final int LOCAL_CAPACITY = 2;
+    static final int SHARED_CAPACITY = 32;
+
+    private static final BufferPool<byte[]> HEAP = new BufferPool<>(new Allocator<byte[]>() {
+        public byte[] allocate(int capacity) {
+            return new byte[capacity];
+        }
+
+        public int recycle(byte[] buffer) {
+            return buffer.length;
+        }
+    });
+
+    private static final BufferPool<ByteBuffer> DIRECT = new BufferPool<>(new Allocator<ByteBuffer>() {
+        public ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        public int recycle(ByteBuffer buffer) {
+            buffer.clear();
+            return buffer.capacity();
+        }
+    });
+
+    /**
+     * 分配缓冲区；在缓冲区放回池中之前重置它的状态，并返回它的容量
+     */
+    interface Allocator<B> {
+        B allocate(int capacity);
+
+        int recycle(B buffer);
+    }
+
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int LOCAL_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_LOCAL_SIZE) - MIN_SHIFT + 1;
+
+    private final Allocator<B> allocator;
+    private final ThreadLocal<ArrayDeque<B>[]> local;
+    private final ArrayBlockingQueue<B>[] shared;
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(Allocator<B> allocator) {
+        this.allocator = allocator;
+        this.local = ThreadLocal.withInitial(() -> {
+            ArrayDeque<B>[] classes = new ArrayDeque[LOCAL_CLASS_COUNT];
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = new ArrayDeque<>(LOCAL_CAPACITY);
+            }
+            return classes;
+        });
+        this.shared = new ArrayBlockingQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            shared[i] = new ArrayBlockingQueue<>(SHARED_CAPACITY);
+        }
+    }
+
+    /**
+     * 进程内共享的byte[]池
+     */
+    public static BufferPool<byte[]> heap() {
+        return HEAP;
+    }
+
+    /**
+     * 进程内共享的直接内存ByteBuffer池，取出的ByteBuffer已经clear
+     */
+    public static BufferPool<ByteBuffer> direct() {
+        return DIRECT;
+    }
+
+    /**
+     * 取出容量不小于size的缓冲区
+     */
+    public B acquire(int size) {
+        Preconditions.checkArgument(size >= 0, "size cannot be negative: %s", size);
+        if (size > MAX_POOLED_SIZE) {
+            return allocate(size);
+        }
+        int index = sizeClass(size);
+        if (index < LOCAL_CLASS_COUNT) {
+            B buffer = local.get()[index].pollFirst();
+            if (buffer != null) {
+                localHits.increment();
+                return buffer;
+            }
+        }
+        B buffer = shared[index].poll();
+        if (buffer != null) {
+            sharedHits.increment();
+            return buffer;
+        }
+        return allocate(MIN_POOLED_SIZE << index);
+    }
+
+    /**
+     * 把acquire取出的缓冲区放回池中
+     */
+    public void release(B buffer) {
+        int capacity = allocator.recycle(buffer);
+        if (capacity < MIN_POOLED_SIZE || capacity > MAX_POOLED_SIZE || Integer.bitCount(capacity) != 1) {
+            discards.increment();
+            return;
+        }
+        int index = sizeClass(capacity);
+        if (index < LOCAL_CLASS_COUNT) {
+            ArrayDeque<B> cached = local.get()[index];
+            if (cached.size() < LOCAL_CAPACITY) {
+                cached.addFirst(buffer);
+                return;
+            }
+        }
+        if (!shared[index].offer(buffer)) {
+            discards.increment();
+        }
+    }
+
+    private B allocate(int capacity) {
+        allocations.increment();
+        allocatedBytes.add(capacity);
+        return allocator.allocate(capacity);
+    }
+
+    // 容量不小于size的最小一级的下标
+    private static int sizeClass(int size) {
+        if (size <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    // 从当前线程的本地层取到缓冲区的次数
+    public long localHitCount() {
+        return localHits.sum();
+    }
+
+    // 从共享层取到缓冲区的次数
+    public long sharedHitCount() {
+        return sharedHits.sum();
+    }
+
+    // 池中没有可用的缓冲区而新分配的次数
+    public long allocationCount() {
+        return allocations.sum();
+    }
+
+    // 新分配的缓冲区的总字节数
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    // 因为池已满或大小不合适而丢弃的缓冲区数量
+    public long discardCount() {
+        return discards.sum();
+    }
+}
@@ -0,0 +1,378 @@
+package ch09_io;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在ByteSource和ByteSink之间复制数据，尽量不经过堆内的缓冲区
+ *
+ * ByteSource.copyTo(ByteSink)总是通过8KB的byte数组在两个流之间复制，
+ * ChannelCopier.copy先识别两端是否能提供通道，再为源的每一段选择复制方式：
+ *  TRANSFER_TO：源是文件，通过FileChannel.transferTo直接发送到目标通道，目标是文件或socket时数据不经过用户空间
+ *  TRANSFER_FROM：源是其他可读通道(如socket)，目标是文件，通过FileChannel.transferFrom接收
+ *  BUFFER_WRITE：源是MappedByteSource，把映射的缓冲区直接写入目标通道
+ *  STREAM：其他情况，与ByteSource.copyTo相同，通过流复制
+ *
+ * 能识别的源：
+ *  asByteSource(File/Path)创建的文件源，以及它的slice
+ *  asByteSource(ChannelOpener)创建的通道源
+ *  MappedByteSource
+ *  openStream()返回FileInputStream的源，例如Files.asByteSource(File)，但它的slice只能按STREAM复制
+ *  concat创建的组合源，每一部分分别选择复制方式，slice后仍然可以识别
+ * 能识别的汇：
+ *  asByteSink(Path, OpenOption...)和asByteSink(ChannelOpener)
+ *  openStream()返回FileOutputStream的汇，例如Files.asByteSink(File, FileWriteMode...)
+ *
+ * 每种方式复制的字节数可以通过bytesCopied查看
+ **/
+public final class ChannelCopier {
+
+    /**
+     * 复制方式
+     */
+    public enum Strategy {
+        TRANSFER_TO,
+        TRANSFER_FROM,
+        BUFFER_WRITE,
+        STREAM
+    }
+
+    /**
+     * 打开一个通道，例如连接socket并返回SocketChannel
+     */
+    public interface ChannelOpener<C> {
+        C open() throws IOException;
+    }
+
+    // transferTo和transferFrom每次调用的最大长度，避免一次调用占用过长时间
+    private static final long MAX_TRANSFER_SIZE = 64 << 20;
+
+    private final Map<Strategy, LongAdder> bytesCopied = new EnumMap<>(Strategy.class);
+
+    public ChannelCopier() {
+        for (Strategy strategy : Strategy.values()) {
+            bytesCopied.put(strategy, new LongAdder());
+        }
+    }
+
+    /**
+     * 把源的全部内容复制到汇，返回复制的字节数
+     */
+    public long copy(ByteSource source, ByteSink sink) throws IOException {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(sink);
+        Closer closer = Closer.create();
+        try {
+            WritableByteChannel target;
+            if (sink instanceof ChannelByteSink) {
+                target = closer.register(((ChannelByteSink) sink).openChannel());
+            } else {
+                OutputStream out = closer.register(sink.openStream());
+                target = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+            }
+            return copy(source, target);
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private long copy(ByteSource source, WritableByteChannel target) throws IOException {
+        if (source instanceof ConcatenatedByteSource) {
+            long total = 0;
+            for (ByteSource part : ((ConcatenatedByteSource) source).sources) {
+                total += copy(part, target);
+            }
+            return total;
+        }
+        if (source instanceof MappedByteSource) {
+            long total = 0;
+            for (ByteBuffer buffer : ((MappedByteSource) source).asByteBuffers()) {
+                while (buffer.hasRemaining()) {
+                    total += target.write(buffer);
+                }
+            }
+            return record(Strategy.BUFFER_WRITE, total);
+        }
+        Closer closer = Closer.create();
+        try {
+            if (source instanceof FileRegionByteSource) {
+                FileRegionByteSource region = (FileRegionByteSource) source;
+                FileChannel channel = closer.register(FileChannel.open(region.path, StandardOpenOption.READ));
+                return record(Strategy.TRANSFER_TO, transferTo(channel, region.offset, region.length, target));
+            }
+            if (source instanceof ChannelByteSource && target instanceof FileChannel) {
+                ReadableByteChannel channel = closer.register(((ChannelByteSource) source).opener.open());
+                return record(Strategy.TRANSFER_FROM, transferFrom(channel, (FileChannel) target));
+            }
+            InputStream in = closer.register(source.openStream());
+            if (in instanceof FileInputStream) {
+                FileChannel channel = ((FileInputStream) in).getChannel();
+                return record(Strategy.TRANSFER_TO, transferTo(channel, channel.position(), Long.MAX_VALUE, target));
+            }
+            return record(Strategy.STREAM, ByteStreams.copy(Channels.newChannel(in), target));
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static long transferTo(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long end = position + Math.min(count, Math.max(0, channel.size() - position));
+        long total = 0;
+        while (position < end) {
+            long n = channel.transferTo(position, Math.min(MAX_TRANSFER_SIZE, end - position), target);
+            if (n <= 0) {
+                // 文件在复制过程中被截断
+                break;
+            }
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    private static long transferFrom(ReadableByteChannel channel, FileChannel target) throws IOException {
+        // transferFrom不会移动目标通道的position，复制完成后手动更新
+        long position = target.position();
+        long total = 0;
+        while (true) {
+            long n = target.transferFrom(channel, position + total, MAX_TRANSFER_SIZE);
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        target.position(position + total);
+        return total;
+    }
+
+    private long record(Strategy strategy, long bytes) {
+        bytesCopied.get(strategy).add(bytes);
+        return bytes;
+    }
+
+    /**
+     * 通过某种方式复制的总字节数
+     */
+    public long bytesCopied(Strategy strategy) {
+        return bytesCopied.get(strategy).sum();
+    }
+
+    /**
+     * 每种方式复制的总字节数
+     */
+    public ImmutableMap<Strategy, Long> bytesCopied() {
+        return Maps.immutableEnumMap(Maps.transformValues(bytesCopied, LongAdder::sum));
+    }
+
+    /**
+     * 文件源，slice后仍然可以通过transferTo复制
+     */
+    public static ByteSource asByteSource(File file) {
+        return asByteSource(file.toPath());
+    }
+
+    public static ByteSource asByteSource(Path path) {
+        return new FileRegionByteSource(Preconditions.checkNotNull(path), 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * 通道源，例如socket，目标是文件时通过transferFrom复制
+     */
+    public static ByteSource asByteSource(ChannelOpener<? extends ReadableByteChannel> opener) {
+        return new ChannelByteSource(Preconditions.checkNotNull(opener));
+    }
+
+    /**
+     * 文件汇，默认的打开方式与Files.asByteSink(File)相同：不存在时创建，存在时清空
+     */
+    public static ByteSink asByteSink(Path path, OpenOption... options) {
+        Preconditions.checkNotNull(path);
+        ImmutableList.Builder<OpenOption> builder = ImmutableList.builder();
+        if (options.length == 0) {
+            builder.add(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            builder.add(options);
+        }
+        OpenOption[] openOptions = builder.add(StandardOpenOption.WRITE).build().toArray(new OpenOption[0]);
+        return new ChannelByteSink(() -> FileChannel.open(path, openOptions));
+    }
+
+    /**
+     * 通道汇，例如socket
+     */
+    public static ByteSink asByteSink(ChannelOpener<? extends WritableByteChannel> opener) {
+        return new ChannelByteSink(Preconditions.checkNotNull(opener));
+    }
+
+    /**
+     * 与ByteSource.concat相同，但copy时每一部分分别选择复制方式
+     */
+    public static ByteSource concat(ByteSource... sources) {
+        return concat(ImmutableList.copyOf(sources));
+    }
+
+    public static ByteSource concat(Iterable<? extends ByteSource> sources) {
+        return new ConcatenatedByteSource(ImmutableList.copyOf(sources));
+    }
+
+    /**
+     * 文件中从offset开始、最多length字节的区域
+     */
+    private static final class FileRegionByteSource extends ByteSource {
+        final Path path;
+        final long offset;
+        final long length;
+
+        FileRegionByteSource(Path path, long offset, long length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            channel.position(offset);
+            return ByteStreams.limit(Channels.newInputStream(channel), length);
+        }
+
+        @Override
+        public Optional<Long> sizeIfKnown() {
+            long size = path.toFile().length();
+            return Optional.of(Math.min(length, Math.max(0, size - offset)));
+        }
+
+        @Override
+        public ByteSource slice(long offset, long length) {
+            Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+            Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+            long start = Math.min(offset, this.length);
+            return new FileRegionByteSource(path, this.offset + start, Math.min(length, this.length - start));
+        }
+
+        @Override
+        public String toString() {
+            return "ChannelCopier.asByteSource(" + path + ").slice(" + offset + ", " + length + ")";
+        }
+    }
+
+    private static final class ChannelByteSource extends ByteSource {
+        final ChannelOpener<? extends ReadableByteChannel> opener;
+
+        ChannelByteSource(ChannelOpener<? extends ReadableByteChannel> opener) {
+            this.opener = opener;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Channels.newInputStream(opener.open());
+        }
+
+        @Override
+        public String toString() {
+            return "ChannelCopier.asByteSource(" + opener + ")";
+        }
+    }
+
+    private static final class ChannelByteSink extends ByteSink {
+        final ChannelOpener<? extends WritableByteChannel> opener;
+
+        ChannelByteSink(ChannelOpener<? extends WritableByteChannel> opener) {
+            this.opener = opener;
+        }
+
+        WritableByteChannel openChannel() throws IOException {
+            return opener.open();
+        }
+
+        @Override
+        public OutputStream openStream() throws IOException {
+            return Channels.newOutputStream(openChannel());
+        }
+
+        @Override
+        public String toString() {
+            return "ChannelCopier.asByteSink(" + opener + ")";
+        }
+    }
+
+    private static final class ConcatenatedByteSource extends ByteSource {
+        final ImmutableList<ByteSource> sources;
+
+        ConcatenatedByteSource(ImmutableList<ByteSource> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return ByteSource.concat(sources).openStream();
+        }
+
+        @Override
+        public Optional<Long> sizeIfKnown() {
+            return ByteSource.concat(sources).sizeIfKnown();
+        }
+
+        /**
+         * 每一部分的长度都已知时，把切片拆分到各个部分上，这样每一部分仍然可以选择自己的复制方式
+         */
+        @Override
+        public ByteSource slice(long offset, long length) {
+            Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+            Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+            List<ByteSource> parts = Lists.newArrayList();
+            long skip = offset;
+            long remaining = length;
+            for (ByteSource source : sources) {
+                Optional<Long> size = source.sizeIfKnown();
+                if (!size.isPresent()) {
+                    return super.slice(offset, length);
+                }
+                if (remaining > 0 && skip < size.get()) {
+                    long n = Math.min(remaining, size.get() - skip);
+                    parts.add(source.slice(skip, n));
+                    remaining -= n;
+                }
+                skip = Math.max(0, skip - size.get());
+            }
+            return new ConcatenatedByteSource(ImmutableList.copyOf(parts));
+        }
+
+        @Override
+        public String toString() {
+            return "ChannelCopier.concat(" + sources + ")";
+        }
+    }
+}
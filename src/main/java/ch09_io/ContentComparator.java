@@ -0,0 +1,250 @@
+package ch09_io;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Closer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * 比较两个源的内容，返回第一个不同字节的位置
+ *
+ * ByteSource.contentEquals总是打开两个流，通过两个8KB的byte数组逐段读取再用Arrays.equals比较，即使两边的长度不同
+ * ContentComparator：
+ *  两边的sizeIfKnown()都已知且不同时，contentEquals直接返回false，不打开文件
+ *  MappedByteSource直接比较映射的缓冲区；openStream()返回FileInputStream的源(例如Files.asByteSource(File))和
+ *  mismatch(Path, Path)通过FileChannel读取，剩余长度不小于MAP_THRESHOLD时按块映射，否则读进BufferPool.direct()的缓冲区
+ *  其他源的流通过Channels.newChannel读进直接内存的缓冲区
+ *  缓冲区之间每次按小端序读取8个字节比较，两个long不同时由异或结果的低位0的个数得到第一个不同字节的位置
+ *
+ * 映射的内存在MappedByteBuffer被GC回收时才释放，大量比较小文件时映射的数量会很快增长，所以小文件不映射
+ **/
+public final class ContentComparator {
+
+    // 剩余长度不小于这个值的文件通过内存映射比较
+    static final long MAP_THRESHOLD = 1 << 20;
+    static final int BUFFER_SIZE = 64 << 10;
+
+    private ContentComparator() {
+    }
+
+    /**
+     * 与a.contentEquals(b)相同，两边的长度都已知且不同时不读取内容
+     */
+    public static boolean contentEquals(ByteSource a, ByteSource b) throws IOException {
+        Optional<Long> aSize = a.sizeIfKnown();
+        Optional<Long> bSize = b.sizeIfKnown();
+        if (aSize.isPresent() && bSize.isPresent() && !aSize.get().equals(bSize.get())) {
+            return false;
+        }
+        return mismatch(a, b) == -1;
+    }
+
+    /**
+     * 返回两个源第一个不同字节的位置，内容相同时返回-1
+     * 一个源是另一个的前缀时，返回较短的那个的长度
+     */
+    public static long mismatch(ByteSource a, ByteSource b) throws IOException {
+        Preconditions.checkNotNull(a);
+        Preconditions.checkNotNull(b);
+        Closer closer = Closer.create();
+        try {
+            return mismatch(open(a, closer), open(b, closer));
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    /**
+     * 比较两个文件的内容，长度不同时只读取文件属性
+     */
+    public static boolean contentEquals(Path a, Path b) throws IOException {
+        if (java.nio.file.Files.size(a) != java.nio.file.Files.size(b)) {
+            return false;
+        }
+        return mismatch(a, b) == -1;
+    }
+
+    public static long mismatch(File a, File b) throws IOException {
+        return mismatch(a.toPath(), b.toPath());
+    }
+
+    /**
+     * 比较两个文件，两边都通过FileChannel读取
+     */
+    public static long mismatch(Path a, Path b) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            FileChannel aChannel = closer.register(FileChannel.open(a, StandardOpenOption.READ));
+            FileChannel bChannel = closer.register(FileChannel.open(b, StandardOpenOption.READ));
+            return mismatch(open(aChannel, closer), open(bChannel, closer));
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    /**
+     * 比较两个缓冲区position到limit之间的内容，返回相对于position的第一个不同字节的位置，相同时返回-1
+     * 与JDK 11的ByteBuffer.mismatch相同，不改变两个缓冲区的position
+     */
+    public static int mismatch(ByteBuffer a, ByteBuffer b) {
+        int length = Math.min(a.remaining(), b.remaining());
+        int i = mismatch(a, a.position(), b, b.position(), length);
+        if (i >= 0 || a.remaining() == b.remaining()) {
+            return i;
+        }
+        return length;
+    }
+
+    private static int mismatch(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        // 小端序时第一个字节在long的低位，直接内存的缓冲区在x86上按long读取不需要交换字节
+        ByteBuffer left = a.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer right = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int i = 0;
+        for (; i <= length - Long.BYTES; i += Long.BYTES) {
+            long diff = left.getLong(aOffset + i) ^ right.getLong(bOffset + i);
+            if (diff != 0) {
+                return i + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+        }
+        for (; i < length; i++) {
+            if (a.get(aOffset + i) != b.get(bOffset + i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 逐段比较，两边每次返回的缓冲区长度可能不同，按两边较短的剩余部分比较
+    private static long mismatch(Input left, Input right) throws IOException {
+        long offset = 0;
+        ByteBuffer a = left.next();
+        ByteBuffer b = right.next();
+        while (a != null && b != null) {
+            int n = Math.min(a.remaining(), b.remaining());
+            int i = mismatch(a, a.position(), b, b.position(), n);
+            if (i >= 0) {
+                return offset + i;
+            }
+            offset += n;
+            a.position(a.position() + n);
+            b.position(b.position() + n);
+            if (!a.hasRemaining()) {
+                a = left.next();
+            }
+            if (!b.hasRemaining()) {
+                b = right.next();
+            }
+        }
+        return a == null && b == null ? -1 : offset;
+    }
+
+    private static Input open(ByteSource source, Closer closer) throws IOException {
+        if (source instanceof MappedByteSource) {
+            Iterator<ByteBuffer> buffers = ((MappedByteSource) source).asByteBuffers().iterator();
+            return () -> buffers.hasNext() ? buffers.next() : null;
+        }
+        InputStream in = closer.register(source.openStream());
+        if (in instanceof FileInputStream) {
+            return open(((FileInputStream) in).getChannel(), closer);
+        }
+        return closer.register(new ChannelInput(Channels.newChannel(in)));
+    }
+
+    // 从channel当前的位置读到文件末尾
+    private static Input open(FileChannel channel, Closer closer) throws IOException {
+        long position = channel.position();
+        long size = channel.size();
+        if (size - position >= MAP_THRESHOLD) {
+            return new MappedInput(channel, position, size);
+        }
+        return closer.register(new ChannelInput(channel));
+    }
+
+    /**
+     * 依次返回源的内容，每次返回的缓冲区都不为空，结束时返回null
+     */
+    private interface Input {
+        ByteBuffer next() throws IOException;
+    }
+
+    /**
+     * 按块映射文件，只在需要时映射下一块
+     */
+    private static final class MappedInput implements Input {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        MappedInput(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (position >= end) {
+                return null;
+            }
+            long size = Math.min(MappedByteSource.MAX_CHUNK_SIZE, end - position);
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+            return chunk;
+        }
+    }
+
+    /**
+     * 把通道读进池中的直接内存缓冲区，每次尽量读满缓冲区
+     */
+    private static final class ChannelInput implements Input, Closeable {
+        private final ReadableByteChannel channel;
+        private ByteBuffer buffer = BufferPool.direct().acquire(BUFFER_SIZE);
+        private boolean eof;
+
+        ChannelInput(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (eof) {
+                return null;
+            }
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining() ? buffer : null;
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                BufferPool.direct().release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch09_io;
+
+import com.google.common.base.Predicates;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 比较Files.fileTraverser()、单线程的walkFileTree与ParallelFileTraverser统计目录树中所有文件大小的耗时，
+ * 以及逐个计算文件哈希与ParallelFileTraverser.hashAll的耗时
+ *
+ * 目录树包含DIRECTORIES个目录，每个目录FILES_PER_DIRECTORY个1KB到4KB的文件，并行度从1开始翻倍，直到CPU核数
+ * fileTraverser()只返回File，取文件大小时还要再调用一次stat，walkFileTree和ParallelFileTraverser在列出目录时已经读取了属性
+ * 每项测试取3轮中最快的一轮，目录和文件已经在页缓存中
+ **/
+public class FileTreeBenchmark {
+
+    private static final int DIRECTORIES = 100;
+    private static final int FILES_PER_DIRECTORY = 200;
+    private static final int ROUNDS = 3;
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    public static void main(String args[]) throws IOException {
+        Path root = java.nio.file.Files.createTempDirectory("file-tree");
+        try {
+            createTree(root);
+            run(root);
+        } finally {
+            MoreFiles.deleteRecursively(root);
+        }
+    }
+
+    private static void createTree(Path root) throws IOException {
+        Random random = new Random(1);
+        for (int d = 0; d < DIRECTORIES; d++) {
+            Path directory = root.resolve("d" + (d % 10)).resolve("d" + d);
+            java.nio.file.Files.createDirectories(directory);
+            for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+                byte[] bytes = new byte[1024 + random.nextInt(3072)];
+                random.nextBytes(bytes);
+                java.nio.file.Files.write(directory.resolve("f" + f + (f % 4 == 0 ? ".log" : ".txt")), bytes);
+            }
+        }
+    }
+
+    private static void run(Path root) throws IOException {
+        HashFunction sha256 = Hashing.sha256();
+
+        // 20000 files, 1 CPU:
+        // fileTraverser()              size: 160.4ms
+        // walkFileTree                 size: 97.3ms
+        // ParallelFileTraverser(1)     size: 60.7ms
+        // ParallelFileTraverser(1)     hashAll: 381.0ms
+        // sequential hash              hashAll: 320.2ms
+        report("fileTraverser()", "size", () -> {
+            long total = 0;
+            for (File file : Files.fileTraverser().breadthFirst(root.toFile())) {
+                if (file.isFile()) {
+                    total += file.length();
+                }
+            }
+        });
+        report("walkFileTree", "size", () -> {
+            LongAdder total = new LongAdder();
+            java.nio.file.Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    total.add(attributes.size());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        });
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            ParallelFileTraverser traverser = new ParallelFileTraverser(pool);
+            String name = "ParallelFileTraverser(" + parallelism + ")";
+            report(name, "size", () -> {
+                LongAdder total = new LongAdder();
+                traverser.forEach(root, Predicates.alwaysTrue(), entry -> total.add(entry.attributes().size()));
+            });
+            report(name, "hashAll", () -> traverser.hashAll(root, Predicates.alwaysTrue(), sha256));
+            pool.shutdown();
+            if (parallelism == processors) {
+                break;
+            }
+        }
+        report("sequential hash", "hashAll", () -> {
+            for (File file : Files.fileTraverser().depthFirstPreOrder(root.toFile())) {
+                if (file.isFile()) {
+                    Files.asByteSource(file).hash(sha256);
+                }
+            }
+        });
+    }
+
+    private static void report(String name, String operation, Task task) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        println(String.format("%-28s %s: %.1fms", name, operation, best / 1e6));
+    }
+
+    private static void println(Object object) {
+        System.out.println(object);
+    }
+}
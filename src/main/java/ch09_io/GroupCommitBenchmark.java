@@ -0,0 +1,145 @@
+package ch09_io;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.FileWriteMode;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较多个线程写审计日志时，每次调用Files.asCharSink(file, UTF_8, APPEND).write与GroupCommitSink的吞吐量
+ *
+ * THREADS个线程各写LINES_PER_THREAD行，每行约80字节
+ * asCharSink每次调用都打开、写入、关闭文件，不保证落盘；asCharSink + sync在关闭前再调用一次FileDescriptor.sync，
+ * 与GroupCommitSink一样保证每次写入返回时数据已经持久化
+ * GroupCommitSink(blocking)中每个线程等待上一行持久化后再写下一行，GroupCommitSink(async)中每个线程只提交，最后等待全部完成
+ * batches是调用force的次数；每项测试取3轮中最快的一轮，fsync的耗时取决于存储设备，在临时文件系统上差别会小很多
+ **/
+public class GroupCommitBenchmark {
+
+    private static final int THREADS = 16;
+    private static final int LINES_PER_THREAD = 200;
+    private static final int ROUNDS = 3;
+
+    private interface Writer {
+        void write(int thread, String line) throws Exception;
+    }
+
+    public static void main(String args[]) throws Exception {
+        File file = File.createTempFile("group-commit", ".log");
+        file.deleteOnExit();
+
+        // 16 threads x 200 lines, 1 CPU:
+        // asCharSink                     3200 lines: 92.7ms, 34530 lines/s
+        // asCharSink + sync              3200 lines: 208.6ms, 15342 lines/s
+        // GroupCommitSink(blocking)      3200 lines: 138.5ms, 23100 lines/s, batches: 341
+        // GroupCommitSink(async)         3200 lines: 72.6ms, 44091 lines/s, batches: 5
+        run("asCharSink", file, (thread, line) ->
+                Files.asCharSink(file, Charsets.UTF_8, FileWriteMode.APPEND).write(line));
+        run("asCharSink + sync", file, (thread, line) -> {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(line.getBytes(Charsets.UTF_8));
+                out.getFD().sync();
+            }
+        });
+        runGroupCommit(file, false);
+        runGroupCommit(file, true);
+    }
+
+    private static void runGroupCommit(File file, boolean async) throws Exception {
+        long batches = Long.MAX_VALUE;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            try (GroupCommitSink sink = GroupCommitSink.newBuilder().open(file.toPath())) {
+                List<List<ListenableFuture<Void>>> pending = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    pending.add(new ArrayList<>());
+                }
+                long elapsed = time(file, (thread, line) -> {
+                    ListenableFuture<Void> future = sink.append(line.getBytes(Charsets.UTF_8));
+                    if (async) {
+                        pending.get(thread).add(future);
+                    } else {
+                        future.get();
+                    }
+                }, thread -> Futures.allAsList(pending.get(thread)).get());
+                best = Math.min(best, elapsed);
+                batches = Math.min(batches, sink.batchCount());
+            }
+            verify(file);
+        }
+        report(async ? "GroupCommitSink(async)" : "GroupCommitSink(blocking)", best,
+                ", batches: " + batches);
+    }
+
+    private static void run(String name, File file, Writer writer) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            best = Math.min(best, time(file, writer, thread -> {
+            }));
+            verify(file);
+        }
+        report(name, best, "");
+    }
+
+    private interface Finisher {
+        void finish(int thread) throws Exception;
+    }
+
+    // 清空文件后让THREADS个线程同时开始写，返回全部完成的时间
+    private static long time(File file, Writer writer, Finisher finisher) throws Exception {
+        Files.write(new byte[0], file);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int thread = i;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int n = 0; n < LINES_PER_THREAD; n++) {
+                    writer.write(thread, String.format("%tFT%<tT thread-%02d event-%05d user=tom action=login ok%n",
+                            System.currentTimeMillis(), thread, n));
+                }
+                finisher.finish(thread);
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return elapsed;
+    }
+
+    private static void verify(File file) throws IOException {
+        int lines = Files.asCharSource(file, Charsets.UTF_8).readLines().size();
+        if (lines != THREADS * LINES_PER_THREAD) {
+            throw new AssertionError("expected " + THREADS * LINES_PER_THREAD + " lines but got " + lines);
+        }
+    }
+
+    private static void report(String name, long nanos, String suffix) {
+        int lines = THREADS * LINES_PER_THREAD;
+        println(String.format("%-30s %d lines: %.1fms, %.0f lines/s%s", name, lines, nanos / 1e6,
+                lines / (nanos / 1e9), suffix));
+    }
+
+    private static void println(Object object) {
+        System.out.println(object);
+    }
+}
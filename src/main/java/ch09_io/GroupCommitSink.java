@@ -0,0 +1,290 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSink;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 持久化的追加写汇，把多个线程同时进行的写入合并成一次提交(group commit)
+ *
+ * Files.asCharSink(file, UTF_8, FileWriteMode.APPEND)的每次write都要打开、写入、关闭文件，而且不保证数据已经落盘
+ * GroupCommitSink一直打开文件，所有写入先进入队列，由一个后台线程成批写出，每批只调用一次FileChannel.force：
+ *  一批的第一条写入到达后，最多再等待maxBatchDelay收集更多的写入，或者攒够maxBatchBytes字节后立即提交
+ *  maxBatchDelay为0时不额外等待，上一批force期间到达的写入自然组成下一批
+ * append返回的ListenableFuture在这批数据force完成后才完成，此时数据已经持久化
+ *
+ * GroupCommitSink也是一个ByteSink：openStream()返回的流在close()时提交并等待持久化，
+ * 所以asCharSink(charset).write、writeLines等方法也会参与成组提交
+ * 同一次写入的内容在文件中是连续的，不同线程的写入之间的顺序与进入队列的顺序相同
+ **/
+public final class GroupCommitSink extends ByteSink implements Closeable {
+
+    // 放在队列的最后，写线程取到它时退出
+    private static final Request CLOSE = new Request(ByteBuffer.allocate(0));
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long maxBatchDelayNanos;
+    private final int maxBatchBytes;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private GroupCommitSink(Builder builder, Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.maxBatchDelayNanos = builder.maxBatchDelayNanos;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.writer = new ThreadFactoryBuilder()
+                .setNameFormat("group-commit-" + path.getFileName() + "-%d")
+                .setDaemon(true)
+                .build()
+                .newThread(this::writeLoop);
+        writer.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long maxBatchDelayNanos = 0;
+        private int maxBatchBytes = 1 << 20;
+
+        private Builder() {
+        }
+
+        // 一批的第一条写入到达后，最多再等待多长时间收集更多的写入，默认为0
+        public Builder maxBatchDelay(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative: %s %s", duration, unit);
+            this.maxBatchDelayNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // 一批最多包含的字节数，超过后立即提交，默认1MB，单次写入超过这个大小时单独成为一批
+        public Builder maxBatchBytes(int maxBatchBytes) {
+            Preconditions.checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive: %s", maxBatchBytes);
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * 以追加方式打开文件，文件不存在时创建
+         */
+        public GroupCommitSink open(Path path) throws IOException {
+            return new GroupCommitSink(this, Preconditions.checkNotNull(path));
+        }
+    }
+
+    /**
+     * 追加bytes，返回的Future在数据持久化后完成，完成前不能修改bytes
+     */
+    public ListenableFuture<Void> append(byte[] bytes) {
+        Request request = new Request(ByteBuffer.wrap(bytes));
+        // 与close互斥，保证关闭之后不会再有请求进入队列
+        synchronized (queue) {
+            if (!closed) {
+                queue.add(request);
+                return request.future;
+            }
+        }
+        request.future.setException(new IOException("sink is closed"));
+        return request.future;
+    }
+
+    /**
+     * 与append(bytes).get()相同，阻塞到数据持久化
+     */
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        awaitDurable(append(bytes));
+    }
+
+    /**
+     * 返回的流在内存中缓存写入的内容，close()时作为一次写入提交，并阻塞到数据持久化
+     */
+    @Override
+    public OutputStream openStream() {
+        return new ByteArrayOutputStream() {
+            private boolean committed;
+
+            @Override
+            public void close() throws IOException {
+                if (!committed) {
+                    committed = true;
+                    awaitDurable(append(toByteArray()));
+                }
+            }
+        };
+    }
+
+    private static void awaitDurable(ListenableFuture<Void> future) throws IOException {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void writeLoop() {
+        List<Request> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            Request first = poll(Long.MAX_VALUE);
+            if (first == null) {
+                continue;
+            }
+            if (first == CLOSE) {
+                break;
+            }
+            batch.add(first);
+            long bytes = first.buffer.remaining();
+            long deadline = System.nanoTime() + maxBatchDelayNanos;
+            while (bytes < maxBatchBytes) {
+                Request next = queue.peek();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || (next = poll(remaining)) == null) {
+                        break;
+                    }
+                } else if (next == CLOSE || bytes + next.buffer.remaining() > maxBatchBytes) {
+                    break;
+                } else {
+                    queue.remove();
+                }
+                // CLOSE是最后一个进入队列的请求，提交这一批后退出
+                if (next == CLOSE) {
+                    stopping = true;
+                    break;
+                }
+                batch.add(next);
+                bytes += next.buffer.remaining();
+            }
+            commit(batch, true);
+            batch.clear();
+        }
+    }
+
+    // 写线程是私有的，不会被中断；万一被中断也只是提前提交这一批，不恢复中断状态，否则下一次FileChannel操作会关闭通道
+    private Request poll(long nanos) {
+        try {
+            return queue.poll(nanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 一次写出整批数据并调用一次force，然后完成这批所有的Future
+     * 写入失败时，还没有写出任何字节的请求作为新的一批重试一次，其余的请求以这个异常失败
+     */
+    private void commit(List<Request> batch, boolean retry) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).buffer;
+            bytes += buffers[i].remaining();
+        }
+        try {
+            long written = 0;
+            while (written < bytes) {
+                written += channel.write(buffers);
+            }
+            // 追加会改变文件的长度，所以同时刷新元数据
+            channel.force(true);
+            batchCount.incrementAndGet();
+            requestCount.addAndGet(batch.size());
+            bytesWritten.addAndGet(bytes);
+            for (Request request : batch) {
+                request.future.set(null);
+            }
+        } catch (IOException e) {
+            List<Request> untouched = new ArrayList<>();
+            for (Request request : batch) {
+                // 已经写出部分或全部字节的请求可能已经在文件中，不能再写一次
+                if (retry && request.buffer.position() == 0 && request.buffer.hasRemaining()) {
+                    untouched.add(request);
+                } else {
+                    request.future.setException(e);
+                }
+            }
+            if (!untouched.isEmpty()) {
+                commit(untouched, false);
+            }
+        }
+    }
+
+    /**
+     * 提交队列中剩余的写入，然后关闭文件
+     * 写线程正在进行的FileChannel操作被中断时通道会被关闭，所以通过CLOSE请求通知写线程退出，不中断它
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        Uninterruptibles.joinUninterruptibly(writer);
+        channel.close();
+    }
+
+    // 提交的批次数，也就是调用force的次数
+    public long batchCount() {
+        return batchCount.get();
+    }
+
+    // 已经持久化的写入次数
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    // 已经持久化的字节数
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommitSink(" + path + ")";
+    }
+
+    /**
+     * 一次写入
+     */
+    private static final class Request {
+        final ByteBuffer buffer;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        Request(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
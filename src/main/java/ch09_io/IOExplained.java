@@ -7,11 +7,14 @@ import com.google.common.collect.Lists;
 import com.google.common.graph.Traverser;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.io.*;
 import java.io.*;
 import java.net.URL;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static java.nio.file.StandardOpenOption.APPEND;
@@ -67,6 +70,11 @@ public class IOExplained {
         // 12
         println(copy);
 
+        // 调用频繁时可以使用PooledByteStreams，缓冲区从BufferPool中取，用完放回
+        is = new FileInputStream("src/main/java/ch09_io/test.txt");
+        // Hello World!
+        println(new String(PooledByteStreams.toByteArray(is)));
+
         is = new FileInputStream("src/main/java/ch09_io/test.txt");
         byte[] b = new byte[10];
         // 读取输入流到指定的byte数组, 如果此流在读取所有字节之前到达数组结尾会抛出 EOFException 异常
@@ -256,11 +264,45 @@ public class IOExplained {
         // true
         println(contentEquals);
 
+        // 长度不同时不读取内容，文件按long逐段比较，mismatch返回第一个不同字节的位置
+        // true
+        println(ContentComparator.contentEquals(fileAsByteSource, moreFilesByteSource));
+        // 6
+        println(ContentComparator.mismatch(fileAsByteSource, ByteSource.wrap("Hello Guava!".getBytes())));
+
         // SHA-1 a file
         HashCode hash = fileAsByteSource.hash(Hashing.sha256());
         // 7f83b1657ff1fc53b92dc18148a1d65dfc2d4b1fa3d677284addd200126d9069
         println(hash.toString());
 
+        // 大文件可以通过内存映射读取，slice、contentEquals和hash直接在映射的缓冲区上完成，不经过FileInputStream
+        MappedByteSource mappedByteSource = MappedByteSource.map(testFile);
+        // World
+        println(new String(mappedByteSource.slice(6, 5).read()));
+        // true
+        println(mappedByteSource.contentEquals(fileAsByteSource));
+        // 12
+        println(mappedByteSource.asByteBuffer().remaining());
+
+        // ChannelCopier为每一部分选择复制方式，文件部分通过FileChannel.transferTo复制，不经过堆内的缓冲区
+        ChannelCopier copier = new ChannelCopier();
+        ByteSource concatenated = ChannelCopier.concat(ChannelCopier.asByteSource(testFile).slice(0, 6),
+                ByteSource.wrap("Guava!".getBytes()));
+        // 12
+        println(copier.copy(concatenated, fileAsByteSink));
+        // {TRANSFER_TO=6, TRANSFER_FROM=0, BUFFER_WRITE=0, STREAM=6}
+        println(copier.bytesCopied());
+
+        // 把源切成固定大小的块并行计算哈希，得到Merkle树的根和每一块的摘要
+        ParallelHasher parallelHasher = new ParallelHasher(Hashing.sha256(), 4, ForkJoinPool.commonPool());
+        TreeHash treeHash = parallelHasher.hash(fileAsByteSource);
+        // 3
+        println(treeHash.chunkCount());
+        // 只有第2块变化时，其余的块沿用之前的摘要
+        TreeHash rehashed = parallelHasher.rehash(treeHash, ByteSource.wrap("Hello Guava!".getBytes()), 6, 5);
+        // [1, 2]
+        println(treeHash.changedChunks(rehashed));
+
 
         String read = fileAsCharSource.read();
         // Hello World!
@@ -270,6 +312,15 @@ public class IOExplained {
         // [Hello World!]
         println(strings);
 
+        // 逐行处理，不创建ImmutableList，每一行都通过同一个CharSequence视图交给LineHandler
+        long lineCount = new LineScanner().scan(fileAsCharSource, line -> {
+            // 0: Hello World!
+            println(line.offset() + ": " + line);
+            return true;
+        });
+        // 1
+        println(lineCount);
+
         String firstLine = fileAsCharSource.readFirstLine();
         // Hello World!
         println(firstLine);
@@ -318,6 +369,32 @@ public class IOExplained {
 
         // 写入给定的文本行，每行（包括最后一行）以给定的行分隔符结尾
         fileAsCharSink.writeLines(Lists.newArrayList("Hello World", "Hello Tom"), "!");
+
+        // 异步的源与汇，操作返回ListenableFuture，调用线程不会阻塞在文件I/O上
+        AsyncFiles asyncFiles = AsyncFiles.newBuilder().maxInFlight(4).build();
+        ListenableFuture<byte[]> readFuture = asyncFiles.asByteSource(testFile.toPath()).read();
+        ListenableFuture<Long> copyFuture = asyncFiles.asByteSource(testFile.toPath())
+                .copyTo(asyncFiles.asByteSink(newFile.toPath(), FileWriteMode.APPEND));
+        // Hello World!
+        println(new String(readFuture.get()));
+        // 12
+        println(copyFuture.get());
+
+        // 持久化的追加写汇，多个线程同时进行的写入合并成一批，每批只force一次
+        File auditFile = File.createTempFile("audit", ".log");
+        auditFile.deleteOnExit();
+        try (GroupCommitSink auditLog = GroupCommitSink.newBuilder()
+                .maxBatchDelay(1, TimeUnit.MILLISECONDS)
+                .open(auditFile.toPath())) {
+            ListenableFuture<Void> durable = auditLog.append("login tom\n".getBytes(UTF_8));
+            // 阻塞到数据持久化
+            auditLog.asCharSink(UTF_8).writeLines(Lists.newArrayList("login jerry", "logout tom"));
+            durable.get();
+            // 2
+            println(auditLog.requestCount());
+        }
+        // [login tom, login jerry, logout tom]
+        println(Files.asCharSource(auditFile, UTF_8).readLines());
     }
 
 
@@ -355,6 +432,13 @@ public class IOExplained {
         // src/main/java/ch09_io/test.txt
         // src/main/java/ch09_io/new.txt
         src.forEach(file -> println(file.toString()));
+
+        // 在ForkJoinPool中并行遍历目录树，列出目录时已经读取了文件属性，可以按扩展名过滤
+        ParallelFileTraverser parallelTraverser = new ParallelFileTraverser();
+        ImmutableList<ParallelFileTraverser.FileEntry> textFiles = parallelTraverser.list(
+                new File("src/main/java/ch09_io").toPath(), ParallelFileTraverser.hasExtension("txt"));
+        // 2
+        println(textFiles.size());
     }
 
     private static void println(Object object) {
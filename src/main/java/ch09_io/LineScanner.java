@@ -0,0 +1,271 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CharSource;
+import com.google.common.io.Closer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * 逐行处理CharSource，不把所有的行放进ImmutableList
+ *
+ * CharSource.readLines()返回包含所有行的ImmutableList，大文件会耗尽内存；
+ * CharSource.readLines(LineProcessor)和BufferedReader.readLine()虽然是流式的，但每一行都要创建一个String
+ * LineScanner把字符读进一个可以复用的大缓冲区，每一行通过同一个Line对象交给LineHandler，
+ * Line实现了CharSequence，直接引用缓冲区中的字符，处理一行的过程中不分配任何对象
+ * Line只在processLine调用期间有效，需要保存时调用toString()
+ *
+ * 行分隔符与CharSource.readLines()相同：\n、\r\n或\r，最后一行没有分隔符时也算作一行
+ * Line.offset()是行首在整个输入中的字符偏移，Line.number()是从0开始的行号
+ *
+ * scan(ByteSource, Charset, LineHandler)用自己的CharsetDecoder和字节缓冲区解码，
+ * 不经过InputStreamReader内部8KB的缓冲区，无法解码的字节与InputStreamReader一样替换为U+FFFD
+ * LineScanner复用缓冲区，不是线程安全的，每个线程应该使用自己的实例
+ **/
+public final class LineScanner {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+
+    // 字节缓冲区至少要能放下一个完整的多字节字符
+    private static final int MIN_BYTE_BUFFER_SIZE = 16;
+
+    /**
+     * 处理一行，返回false时停止
+     */
+    public interface LineHandler {
+        boolean processLine(Line line) throws IOException;
+    }
+
+    /**
+     * 缓冲区中一行的视图，不包含行分隔符
+     */
+    public static final class Line implements CharSequence {
+        private char[] chars;
+        private int start;
+        private int end;
+        private long offset;
+        private long number;
+
+        private Line() {
+        }
+
+        private void set(char[] chars, int start, int end, long offset, long number) {
+            this.chars = chars;
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.number = number;
+        }
+
+        // 行首在整个输入中的字符偏移
+        public long offset() {
+            return offset;
+        }
+
+        // 从0开始的行号
+        public long number() {
+            return number;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Preconditions.checkElementIndex(index, end - start);
+            return chars[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            Preconditions.checkPositionIndexes(from, to, end - start);
+            return new String(chars, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+    }
+
+    private interface CharInput {
+        int read(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final int bufferSize;
+    private final Line line = new Line();
+    private char[] chars;
+    private ByteBuffer bytes;
+
+    public LineScanner() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize 字符缓冲区和字节缓冲区的初始大小，遇到更长的行时字符缓冲区会自动扩大
+     */
+    public LineScanner(int bufferSize) {
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive: %s", bufferSize);
+        this.bufferSize = bufferSize;
+        this.chars = new char[bufferSize];
+    }
+
+    /**
+     * 逐行处理source，返回处理过的行数
+     */
+    public long scan(CharSource source, LineHandler handler) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            Reader reader = closer.register(source.openStream());
+            return scan(reader::read, handler);
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    /**
+     * 按charset解码source并逐行处理，返回处理过的行数
+     */
+    public long scan(ByteSource source, Charset charset, LineHandler handler) throws IOException {
+        if (bytes == null) {
+            bytes = ByteBuffer.allocate(Math.max(bufferSize, MIN_BYTE_BUFFER_SIZE));
+        }
+        Closer closer = Closer.create();
+        try {
+            InputStream in = closer.register(source.openStream());
+            return scan(new DecodingInput(in, charset, bytes), handler);
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private long scan(CharInput input, LineHandler handler) throws IOException {
+        char[] buffer = chars;
+        // buffer[0]在整个输入中的字符偏移
+        long base = 0;
+        long lines = 0;
+        int start = 0;
+        int position = 0;
+        int limit = 0;
+        // 上一行以\r结束，如果下一个字符是\n，它属于同一个分隔符
+        boolean skipLineFeed = false;
+        while (true) {
+            if (position == limit) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, limit - start);
+                    base += start;
+                    position -= start;
+                    limit -= start;
+                    start = 0;
+                }
+                if (limit == buffer.length) {
+                    buffer = chars = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = input.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    break;
+                }
+                if (n == 0) {
+                    // 剩余空间放不下下一个字符
+                    buffer = chars = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                limit += n;
+                continue;
+            }
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (buffer[position] == '\n') {
+                    start = ++position;
+                    continue;
+                }
+            }
+            // 查找下一个分隔符，'\r'之后的字符都不是分隔符，只需要一次比较
+            char c = 0;
+            while (position < limit && ((c = buffer[position]) > '\r' || (c != '\n' && c != '\r'))) {
+                position++;
+            }
+            if (position == limit) {
+                continue;
+            }
+            line.set(buffer, start, position, base + start, lines++);
+            start = ++position;
+            skipLineFeed = c == '\r';
+            if (!handler.processLine(line)) {
+                return lines;
+            }
+        }
+        if (start < limit) {
+            line.set(buffer, start, limit, base + start, lines++);
+            handler.processLine(line);
+        }
+        return lines;
+    }
+
+    /**
+     * 通过CharsetDecoder把字节流解码到调用者的字符缓冲区
+     */
+    private static final class DecodingInput implements CharInput {
+        private final InputStream in;
+        private final CharsetDecoder decoder;
+        private final ByteBuffer bytes;
+        private boolean endOfInput;
+        private boolean flushed;
+
+        DecodingInput(InputStream in, Charset charset, ByteBuffer bytes) {
+            this.in = in;
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.bytes = bytes;
+            bytes.clear().flip();
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+            while (out.position() == offset) {
+                if (flushed) {
+                    return -1;
+                }
+                CoderResult result = decoder.decode(bytes, out, endOfInput);
+                if (result.isOverflow()) {
+                    // 剩余空间放不下一个完整的字符(例如代理对)，交给调用者扩大缓冲区
+                    break;
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (endOfInput) {
+                    decoder.flush(out);
+                    flushed = true;
+                    continue;
+                }
+                bytes.compact();
+                int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+                if (n < 0) {
+                    endOfInput = true;
+                } else {
+                    bytes.position(bytes.position() + n);
+                }
+                bytes.flip();
+            }
+            return out.position() - offset;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 通过内存映射写入文件的ByteSink，与MappedByteSource配合使用
+ *
+ * 每次写入都会覆盖原来的文件内容：
+ *  write(byte[])和write(List<ByteBuffer>)预先知道总长度，一次映射好整个区域后直接put，
+ *  MappedByteSource.asByteBuffers()得到的视图可以直接写入，数据只在两个映射之间复制一次
+ *  openStream()不知道总长度，每次映射WINDOW_SIZE大小的窗口，写满后映射下一个窗口，关闭时把文件截断到实际写入的长度
+ * 写入的数据由操作系统在适当的时候刷到磁盘，与FileOutputStream一样不保证持久化
+ **/
+public class MappedByteSink extends ByteSink {
+
+    // openStream()每次映射的窗口大小
+    static final int WINDOW_SIZE = 8 << 20;
+
+    private final Path path;
+
+    private MappedByteSink(Path path) {
+        this.path = path;
+    }
+
+    public static MappedByteSink of(File file) {
+        return of(file.toPath());
+    }
+
+    public static MappedByteSink of(Path path) {
+        return new MappedByteSink(Preconditions.checkNotNull(path));
+    }
+
+    @Override
+    public OutputStream openStream() throws IOException {
+        return new MappedOutputStream(open());
+    }
+
+    @Override
+    public void write(byte[] bytes) throws IOException {
+        write(ImmutableList.of(ByteBuffer.wrap(bytes)));
+    }
+
+    /**
+     * 把所有缓冲区剩余的内容依次写入文件，不改变缓冲区的position
+     */
+    public void write(List<ByteBuffer> buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        try (FileChannel channel = open()) {
+            long position = 0;
+            MappedByteBuffer target = null;
+            for (ByteBuffer buffer : buffers) {
+                ByteBuffer source = buffer.duplicate();
+                while (source.hasRemaining()) {
+                    if (target == null || !target.hasRemaining()) {
+                        int size = (int) Math.min(MappedByteSource.MAX_CHUNK_SIZE, total - position);
+                        target = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                        position += size;
+                    }
+                    int n = Math.min(source.remaining(), target.remaining());
+                    ByteBuffer part = source.duplicate();
+                    part.limit(part.position() + n);
+                    target.put(part);
+                    source.position(source.position() + n);
+                }
+            }
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedByteSink(" + path + ")";
+    }
+
+    /**
+     * 按窗口映射文件的输出流
+     */
+    private static final class MappedOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        // 当前窗口在文件中的起始位置
+        private long windowStart;
+        private boolean closed;
+
+        MappedOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // 返回还有剩余空间的窗口，当前窗口写满时映射下一个窗口
+        private MappedByteBuffer window() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (window == null || !window.hasRemaining()) {
+                if (window != null) {
+                    windowStart += window.capacity();
+                }
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+            }
+            return window;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            window().put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Preconditions.checkPositionIndexes(off, off + len, b.length);
+            while (len > 0) {
+                MappedByteBuffer target = window();
+                int n = Math.min(len, target.remaining());
+                target.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // 映射窗口时文件被扩展到了窗口末尾，截掉多余的部分
+                channel.truncate(window == null ? 0 : windowStart + window.position());
+            } finally {
+                window = null;
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package ch09_io;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 通过内存映射读取文件的ByteSource
+ *
+ * Files.asByteSource(File)的每个操作都通过FileInputStream把数据复制到堆内的缓冲区
+ * MappedByteSource在创建时把文件按块映射到内存(MappedByteBuffer的容量是int，每块不超过2GB)，
+ * read()、slice()、size()、contentEquals()和hash()都直接在映射的缓冲区上完成，
+ * asByteBuffers()返回只读的ByteBuffer视图，不复制任何数据
+ * slice()与原来的MappedByteSource共享映射，不会重新映射文件
+ *
+ * 映射在创建时按文件当时的大小建立，之后文件变长的部分不可见，文件被截断时访问映射会抛出InternalError
+ * 映射的内存在MappedByteBuffer被GC回收时才释放
+ **/
+public class MappedByteSource extends ByteSource {
+
+    // 每块的最大长度，取8的倍数，便于按long读取
+    static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 7;
+
+    private final ImmutableList<MappedByteBuffer> chunks;
+    private final long offset;
+    private final long length;
+
+    private MappedByteSource(ImmutableList<MappedByteBuffer> chunks, long offset, long length) {
+        this.chunks = chunks;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * 以只读方式映射整个文件
+     */
+    public static MappedByteSource map(File file) throws IOException {
+        return map(file.toPath());
+    }
+
+    public static MappedByteSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ImmutableList.Builder<MappedByteBuffer> chunks = ImmutableList.builder();
+            for (long position = 0; position < size; position += MAX_CHUNK_SIZE) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_CHUNK_SIZE, size - position)));
+            }
+            return new MappedByteSource(chunks.build(), 0, size);
+        }
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new MappedInputStream(asByteBuffers());
+    }
+
+    @Override
+    public Optional<Long> sizeIfKnown() {
+        return Optional.of(length);
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    @Override
+    public MappedByteSource slice(long offset, long length) {
+        Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+        Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+        long start = Math.min(offset, this.length);
+        return new MappedByteSource(chunks, this.offset + start, Math.min(length, this.length - start));
+    }
+
+    @Override
+    public byte[] read() {
+        Preconditions.checkState(length <= Integer.MAX_VALUE, "%s bytes is too large to fit in a byte array", length);
+        byte[] bytes = new byte[(int) length];
+        int position = 0;
+        for (ByteBuffer buffer : asByteBuffers()) {
+            int remaining = buffer.remaining();
+            buffer.get(bytes, position, remaining);
+            position += remaining;
+        }
+        return bytes;
+    }
+
+    @Override
+    public long copyTo(OutputStream output) throws IOException {
+        // FileOutputStream等流对应的通道可以直接写出ByteBuffer，不需要先复制到byte数组
+        WritableByteChannel channel = Channels.newChannel(output);
+        for (ByteBuffer buffer : asByteBuffers()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public HashCode hash(HashFunction hashFunction) {
+        Hasher hasher = hashFunction.newHasher();
+        for (ByteBuffer buffer : asByteBuffers()) {
+            hasher.putBytes(buffer);
+        }
+        return hasher.hash();
+    }
+
+    @Override
+    public boolean contentEquals(ByteSource other) throws IOException {
+        // 另一边是MappedByteSource或者文件时也直接比较缓冲区，每次比较8个字节
+        return ContentComparator.contentEquals(this, other);
+    }
+
+    /**
+     * 返回覆盖这个源全部内容的只读ByteBuffer视图，按映射的块划分，每次调用都返回新的视图，互不影响
+     */
+    public List<ByteBuffer> asByteBuffers() {
+        ImmutableList.Builder<ByteBuffer> views = ImmutableList.builder();
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            int chunk = (int) (position / MAX_CHUNK_SIZE);
+            int from = (int) (position % MAX_CHUNK_SIZE);
+            int to = (int) Math.min(chunks.get(chunk).capacity(), end - (long) chunk * MAX_CHUNK_SIZE);
+            ByteBuffer view = chunks.get(chunk).asReadOnlyBuffer();
+            view.position(from);
+            view.limit(to);
+            views.add(view.slice());
+            position += to - from;
+        }
+        return views.build();
+    }
+
+    /**
+     * 内容位于同一个映射块内时，返回一个只读的ByteBuffer视图，否则抛出IllegalStateException
+     */
+    public ByteBuffer asByteBuffer() {
+        List<ByteBuffer> views = asByteBuffers();
+        Preconditions.checkState(views.size() <= 1, "source spans %s mapped chunks", views.size());
+        return views.isEmpty() ? ByteBuffer.allocate(0) : views.get(0);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedByteSource(" + offset + ", " + length + ")";
+    }
+
+    /**
+     * 依次读取多个ByteBuffer的输入流
+     */
+    private static final class MappedInputStream extends InputStream {
+        private final List<ByteBuffer> buffers;
+        private int index;
+
+        MappedInputStream(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        // 当前还有剩余内容的缓冲区，读完时返回null
+        private ByteBuffer current() {
+            while (index < buffers.size() && !buffers.get(index).hasRemaining()) {
+                index++;
+            }
+            return index < buffers.size() ? buffers.get(index) : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            Preconditions.checkPositionIndexes(off, off + len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = current();
+            if (buffer == null) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            ByteBuffer buffer;
+            while (skipped < n && (buffer = current()) != null) {
+                int step = (int) Math.min(n - skipped, buffer.remaining());
+                buffer.position(buffer.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = current();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+    }
+}
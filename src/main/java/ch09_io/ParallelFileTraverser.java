@@ -0,0 +1,223 @@
+package ch09_io;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * 在ForkJoinPool中并行遍历目录树
+ *
+ * Files.fileTraverser()在一个线程中逐个返回File，需要文件的大小、修改时间等属性时还要再调用一次stat
+ * ParallelFileTraverser为每个目录创建一个任务，通过Files.walkFileTree(dir, maxDepth = 1)列出目录中的项，
+ * walkFileTree在列出每一项时已经读取了它的属性，这些属性随FileEntry一起交给调用者，不需要额外的stat
+ * 子目录作为新的任务fork出去，由空闲的线程取走，多个目录同时列出
+ *
+ * 符号链接不会被跟随，指向目录的符号链接当作普通的项返回
+ * 无法读取的目录或文件不会中断遍历，遍历结束后抛出遇到的第一个IOException，其余的作为suppressed异常
+ * 读取目录是阻塞操作，使用专门的ForkJoinPool可以避免占满公共池
+ **/
+public final class ParallelFileTraverser {
+
+    /**
+     * 目录树中的一个文件及其属性
+     */
+    public static final class FileEntry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        FileEntry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        // 列出目录时读取的属性
+        public BasicFileAttributes attributes() {
+            return attributes;
+        }
+
+        // 与Files.getFileExtension相同
+        public String extension() {
+            return Files.getFileExtension(path.getFileName().toString());
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public ParallelFileTraverser(ForkJoinPool pool) {
+        this.pool = Preconditions.checkNotNull(pool);
+    }
+
+    public ParallelFileTraverser() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 按Files.getFileExtension得到的扩展名过滤，只对ASCII字母不区分大小写，结果与默认Locale无关
+     */
+    public static Predicate<FileEntry> hasExtension(String... extensions) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String extension : extensions) {
+            builder.add(Ascii.toLowerCase(extension));
+        }
+        ImmutableSet<String> set = builder.build();
+        return entry -> set.contains(Ascii.toLowerCase(entry.extension()));
+    }
+
+    /**
+     * 遍历root下所有不是目录的项，对满足filter的项调用consumer
+     * consumer会在多个线程中同时被调用，调用顺序不确定
+     */
+    public void forEach(Path root, Predicate<? super FileEntry> filter, Consumer<? super FileEntry> consumer)
+            throws IOException {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(consumer);
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        pool.invoke(new DirectoryTask(root, failures, entry -> {
+            if (filter.apply(entry)) {
+                consumer.accept(entry);
+            }
+            return null;
+        }));
+        throwFailures(failures);
+    }
+
+    /**
+     * 返回root下所有满足filter的项，顺序不确定
+     */
+    public ImmutableList<FileEntry> list(Path root, Predicate<? super FileEntry> filter) throws IOException {
+        Queue<FileEntry> entries = new ConcurrentLinkedQueue<>();
+        forEach(root, filter, entries::add);
+        return ImmutableList.copyOf(entries);
+    }
+
+    /**
+     * 计算root下所有满足filter的文件的哈希
+     * 遍历和计算在同一个ForkJoinPool中进行，每个文件是一个单独的任务，列出目录和读取文件互相重叠
+     */
+    public ImmutableMap<Path, HashCode> hashAll(Path root, Predicate<? super FileEntry> filter,
+                                                HashFunction hashFunction) throws IOException {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(hashFunction);
+        Map<Path, HashCode> hashes = new ConcurrentHashMap<>();
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        pool.invoke(new DirectoryTask(root, failures, entry -> {
+            if (!filter.apply(entry) || !entry.attributes().isRegularFile()) {
+                return null;
+            }
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        hashes.put(entry.path(), MoreFiles.asByteSource(entry.path()).hash(hashFunction));
+                    } catch (IOException e) {
+                        failures.add(e);
+                    }
+                }
+            };
+        }));
+        throwFailures(failures);
+        return ImmutableMap.copyOf(hashes);
+    }
+
+    private static void throwFailures(Queue<IOException> failures) throws IOException {
+        IOException first = failures.poll();
+        if (first != null) {
+            for (IOException failure : failures) {
+                first.addSuppressed(failure);
+            }
+            throw first;
+        }
+    }
+
+    /**
+     * 处理一个不是目录的项，需要异步处理时返回一个任务，否则返回null
+     */
+    private interface EntryHandler {
+        ForkJoinTask<?> handle(FileEntry entry);
+    }
+
+    /**
+     * 列出一个目录，为每个子目录fork一个新任务，其余的项交给EntryHandler
+     */
+    private static final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Queue<IOException> failures;
+        private final EntryHandler handler;
+
+        DirectoryTask(Path directory, Queue<IOException> failures, EntryHandler handler) {
+            this.directory = directory;
+            this.failures = failures;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try {
+                java.nio.file.Files.walkFileTree(directory, Collections.<FileVisitOption>emptySet(), 1,
+                        new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                                // maxDepth为1时，子目录也通过visitFile返回，属性同样已经读取
+                                if (attributes.isDirectory()) {
+                                    tasks.add(new DirectoryTask(file, failures, handler).fork());
+                                } else {
+                                    ForkJoinTask<?> task = handler.handle(new FileEntry(file, attributes));
+                                    if (task != null) {
+                                        tasks.add(task.fork());
+                                    }
+                                }
+                                return FileVisitResult.CONTINUE;
+                            }
+
+                            @Override
+                            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                                failures.add(e);
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            } catch (IOException e) {
+                failures.add(e);
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+}
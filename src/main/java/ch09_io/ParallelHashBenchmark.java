@@ -0,0 +1,82 @@
+package ch09_io;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 比较ByteSource.hash与ParallelHasher在不同并行度下的吞吐量，以及只修改一块后rehash的耗时
+ *
+ * 文件大小可以通过第一个参数指定(MB)，默认512MB，并行度从1开始翻倍，直到CPU核数
+ * 每项测试取3轮中最快的一轮，文件在第一轮之后已经在页缓存中，测到的是哈希计算本身的扩展性，
+ * 在NVMe上冷读时，多个线程同时读取不同的块也能提高吞吐量
+ **/
+public class ParallelHashBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    public static void main(String args[]) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        File file = File.createTempFile("parallel-hash", ".bin");
+        file.deleteOnExit();
+        byte[] block = new byte[1 << 20];
+        new Random(1).nextBytes(block);
+        try (OutputStream out = Files.asByteSink(file).openBufferedStream()) {
+            for (int i = 0; i < megabytes; i++) {
+                out.write(block);
+            }
+        }
+        ByteSource source = Files.asByteSource(file);
+        HashFunction sha256 = Hashing.sha256();
+
+        // 512MB, 1 CPU:
+        // hash()                sequential: 848MB/s
+        // ParallelHasher(1)     838MB/s
+        // rehash 1 of 128 chunks: 9.8ms
+        println(String.format("%-21s sequential: %.0fMB/s", "hash()",
+                megabytes / seconds(() -> source.hash(sha256))));
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, processors)) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            ParallelHasher hasher = new ParallelHasher(sha256, ParallelHasher.DEFAULT_CHUNK_SIZE, pool);
+            println(String.format("%-21s %.0fMB/s", "ParallelHasher(" + parallelism + ")",
+                    megabytes / seconds(() -> hasher.hash(source))));
+            pool.shutdown();
+            if (parallelism == processors) {
+                break;
+            }
+        }
+
+        ParallelHasher hasher = new ParallelHasher(sha256);
+        TreeHash previous = hasher.hash(source);
+        long offset = file.length() / 2;
+        println(String.format("rehash 1 of %s chunks: %.1fms", previous.chunkCount(),
+                seconds(() -> hasher.rehash(previous, source, offset, 1)) * 1e3));
+    }
+
+    // 多轮中最快的一轮耗时(秒)
+    private static double seconds(Task task) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e9;
+    }
+
+    private static void println(Object object) {
+        System.out.println(object);
+    }
+}
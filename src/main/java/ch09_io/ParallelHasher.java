@@ -0,0 +1,191 @@
+package ch09_io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 并行计算ByteSource的分块哈希
+ *
+ * ByteSource.hash(HashFunction)只能在一个线程中顺序读取和计算，
+ * ParallelHasher通过slice(offset, length)把源切成chunkSize大小的块，在ForkJoinPool中并行计算每一块的摘要，
+ * 再按TreeHash描述的格式合并成Merkle树，树的每棵子树对应一个任务，左右子树分别fork
+ *
+ * 只有部分块发生变化时，rehash只重新读取变化的块，其余的块沿用之前的摘要
+ * 每一块都会单独打开一次源，适合文件、MappedByteSource这类可以随机访问的源
+ * 读取文件是阻塞操作，使用专门的ForkJoinPool可以避免占满公共池
+ **/
+public final class ParallelHasher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final HashFunction hashFunction;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param hashFunction 计算叶子和内部节点使用的哈希函数，例如Hashing.sha256()
+     * @param chunkSize    每一块的长度
+     * @param pool         计算使用的线程池
+     */
+    public ParallelHasher(HashFunction hashFunction, int chunkSize, ForkJoinPool pool) {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive: %s", chunkSize);
+        this.hashFunction = Preconditions.checkNotNull(hashFunction);
+        this.chunkSize = chunkSize;
+        this.pool = Preconditions.checkNotNull(pool);
+    }
+
+    public ParallelHasher(HashFunction hashFunction) {
+        this(hashFunction, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 计算整个源的分块哈希
+     */
+    public TreeHash hash(ByteSource source) throws IOException {
+        long size = source.size();
+        return compute(source, size, new HashCode[chunkCount(size)]);
+    }
+
+    /**
+     * 源中只有[offset, offset + length)范围内的内容发生了变化时，重新计算分块哈希
+     * 源的长度发生变化时，原来的最后一块以及新增的块也会重新计算
+     */
+    public TreeHash rehash(TreeHash previous, ByteSource source, long offset, long length) throws IOException {
+        Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+        Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+        BitSet changed = new BitSet();
+        if (length > 0) {
+            changed.set((int) (offset / chunkSize), (int) ((offset + length - 1) / chunkSize) + 1);
+        }
+        return rehash(previous, source, changed);
+    }
+
+    /**
+     * 只重新计算changedChunks中的块
+     */
+    public TreeHash rehash(TreeHash previous, ByteSource source, Iterable<Integer> changedChunks) throws IOException {
+        BitSet changed = new BitSet();
+        for (int chunk : changedChunks) {
+            changed.set(chunk);
+        }
+        return rehash(previous, source, changed);
+    }
+
+    private TreeHash rehash(TreeHash previous, ByteSource source, BitSet changed) throws IOException {
+        Preconditions.checkArgument(previous.chunkSize() == chunkSize,
+                "previous hash used chunk size %s, not %s", previous.chunkSize(), chunkSize);
+        long size = source.size();
+        HashCode[] leaves = new HashCode[chunkCount(size)];
+        // 只有长度没变的块才能沿用，原来不满的最后一块在源变长后也要重新计算
+        int reusable = (int) Math.min(leaves.length, Math.min(previous.size(), size) / chunkSize);
+        for (int i = 0; i < reusable; i++) {
+            if (!changed.get(i)) {
+                leaves[i] = previous.chunkDigests().get(i);
+            }
+        }
+        if (size == previous.size() && leaves.length > 0 && !changed.get(leaves.length - 1)) {
+            leaves[leaves.length - 1] = previous.chunkDigests().get(leaves.length - 1);
+        }
+        return compute(source, size, leaves);
+    }
+
+    // leaves中为null的块需要重新读取
+    private TreeHash compute(ByteSource source, long size, HashCode[] leaves) throws IOException {
+        HashCode root;
+        if (leaves.length == 0) {
+            root = hashFunction.hashBytes(new byte[0]);
+        } else {
+            try {
+                root = pool.invoke(new SubtreeTask(source, size, leaves, 0, leaves.length));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return new TreeHash(size, chunkSize, root, Arrays.asList(leaves));
+    }
+
+    private int chunkCount(long size) {
+        long count = (size + chunkSize - 1) / chunkSize;
+        Preconditions.checkArgument(count <= Integer.MAX_VALUE, "too many chunks: %s", count);
+        return (int) count;
+    }
+
+    private HashCode hashChunk(ByteSource source, long size, int index) throws IOException {
+        long offset = (long) index * chunkSize;
+        ByteSource chunk = source.slice(offset, Math.min(chunkSize, size - offset));
+        Hasher hasher = hashFunction.newHasher().putByte(LEAF_PREFIX);
+        if (chunk instanceof MappedByteSource) {
+            for (ByteBuffer buffer : ((MappedByteSource) chunk).asByteBuffers()) {
+                hasher.putBytes(buffer);
+            }
+        } else {
+            chunk.copyTo(Funnels.asOutputStream(hasher));
+        }
+        return hasher.hash();
+    }
+
+    private HashCode combine(HashCode left, HashCode right) {
+        return hashFunction.newHasher()
+                .putByte(NODE_PREFIX)
+                .putBytes(left.asBytes())
+                .putBytes(right.asBytes())
+                .hash();
+    }
+
+    /**
+     * 计算叶子[from, to)组成的子树的根
+     */
+    private final class SubtreeTask extends RecursiveTask<HashCode> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteSource source;
+        private final long size;
+        private final HashCode[] leaves;
+        private final int from;
+        private final int to;
+
+        SubtreeTask(ByteSource source, long size, HashCode[] leaves, int from, int to) {
+            this.source = source;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected HashCode compute() {
+            int n = to - from;
+            if (n == 1) {
+                if (leaves[from] == null) {
+                    try {
+                        leaves[from] = hashChunk(source, size, from);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return leaves[from];
+            }
+            // 左子树包含小于n的最大的2的幂个叶子
+            int split = from + Integer.highestOneBit(n - 1);
+            SubtreeTask right = new SubtreeTask(source, size, leaves, split, to);
+            right.fork();
+            HashCode left = new SubtreeTask(source, size, leaves, from, split).compute();
+            return combine(left, right.join());
+        }
+    }
+}
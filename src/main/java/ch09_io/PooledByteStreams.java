@@ -0,0 +1,180 @@
+package ch09_io;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Closer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 从BufferPool取缓冲区的ByteStreams
+ *
+ * ByteStreams.copy每次调用都分配一个8KB的byte数组，ByteStreams.toByteArray在读取过程中分配多个逐渐变大的数组，
+ * 再把它们合并成最终的结果，调用非常频繁时这些临时数组会带来大量的GC压力
+ *  copy：从BufferPool.heap()取COPY_BUFFER_SIZE大小的缓冲区，通道之间的复制从BufferPool.direct()取
+ *  toByteArray：内容先读进池中的缓冲区，读完后只分配一次大小正好的结果数组
+ *  toByteArray(InputStream, long)和read(ByteSource)：预先知道长度时直接读进结果数组，实际长度不同时再退回到上一种方式
+ **/
+public final class PooledByteStreams {
+
+    static final int COPY_BUFFER_SIZE = 64 << 10;
+
+    private PooledByteStreams() {
+    }
+
+    /**
+     * 与ByteStreams.copy(InputStream, OutputStream)相同，不关闭两个流
+     */
+    public static long copy(InputStream from, OutputStream to) throws IOException {
+        Preconditions.checkNotNull(from);
+        Preconditions.checkNotNull(to);
+        BufferPool<byte[]> pool = BufferPool.heap();
+        byte[] buffer = pool.acquire(COPY_BUFFER_SIZE);
+        try {
+            long total = 0;
+            int n;
+            while ((n = from.read(buffer)) != -1) {
+                to.write(buffer, 0, n);
+                total += n;
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * 与ByteStreams.copy(ReadableByteChannel, WritableByteChannel)相同，使用直接内存的缓冲区，
+     * 避免通道读写时JDK在堆缓冲区和临时的直接缓冲区之间复制
+     */
+    public static long copy(ReadableByteChannel from, WritableByteChannel to) throws IOException {
+        Preconditions.checkNotNull(from);
+        Preconditions.checkNotNull(to);
+        BufferPool<ByteBuffer> pool = BufferPool.direct();
+        ByteBuffer buffer = pool.acquire(COPY_BUFFER_SIZE);
+        try {
+            long total = 0;
+            while (from.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += to.write(buffer);
+                }
+                buffer.clear();
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * 与ByteStreams.toByteArray(InputStream)相同，只分配结果数组
+     */
+    public static byte[] toByteArray(InputStream in) throws IOException {
+        return readRemaining(in, new byte[0], 0);
+    }
+
+    /**
+     * 预计流中有expectedSize字节时，直接读进大小为expectedSize的数组
+     */
+    public static byte[] toByteArray(InputStream in, long expectedSize) throws IOException {
+        Preconditions.checkArgument(expectedSize >= 0, "expectedSize (%s) must be non-negative", expectedSize);
+        if (expectedSize > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError(expectedSize + " bytes is too large to fit in a byte array");
+        }
+        byte[] bytes = new byte[(int) expectedSize];
+        int length = 0;
+        while (length < bytes.length) {
+            int n = in.read(bytes, length, bytes.length - length);
+            if (n == -1) {
+                // 比预计的短
+                return Arrays.copyOf(bytes, length);
+            }
+            length += n;
+        }
+        int next = in.read();
+        if (next == -1) {
+            return bytes;
+        }
+        // 比预计的长，剩余部分读进池中的缓冲区
+        bytes = Arrays.copyOf(bytes, length + 1);
+        bytes[length] = (byte) next;
+        return readRemaining(in, bytes, length + 1);
+    }
+
+    /**
+     * 与ByteSource.read()相同，sizeIfKnown()有值时按这个长度预先分配结果数组
+     */
+    public static byte[] read(ByteSource source) throws IOException {
+        Closer closer = Closer.create();
+        try {
+            InputStream in = closer.register(source.openStream());
+            Optional<Long> size = source.sizeIfKnown();
+            return size.isPresent() ? toByteArray(in, size.get()) : toByteArray(in);
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+    }
+
+    /**
+     * 把流中剩余的内容读进池中的缓冲区，再和prefix的前prefixLength字节合并成结果数组
+     */
+    private static byte[] readRemaining(InputStream in, byte[] prefix, int prefixLength) throws IOException {
+        BufferPool<byte[]> pool = BufferPool.heap();
+        List<byte[]> buffers = new ArrayList<>();
+        long total = prefixLength;
+        try {
+            // 第一个缓冲区取最小的一级，之后逐级翻倍，小的流不会占用大的缓冲区
+            int size = BufferPool.MIN_POOLED_SIZE;
+            while (true) {
+                byte[] buffer = pool.acquire(size);
+                buffers.add(buffer);
+                int length = readFully(in, buffer);
+                total += length;
+                if (length < buffer.length) {
+                    break;
+                }
+                size = Math.min(size * 2, BufferPool.MAX_POOLED_SIZE);
+            }
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new OutOfMemoryError("input is too large to fit in a byte array");
+            }
+            byte[] result = Arrays.copyOf(prefix, (int) total);
+            int position = prefixLength;
+            for (byte[] buffer : buffers) {
+                int length = Math.min(buffer.length, (int) total - position);
+                System.arraycopy(buffer, 0, result, position, length);
+                position += length;
+            }
+            return result;
+        } finally {
+            for (byte[] buffer : buffers) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    // 读满buffer或读到流的末尾，返回读取的字节数
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,100 @@
+package ch09_io;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * ParallelHasher计算的分块哈希：Merkle树的根以及每一块的摘要
+ *
+ * 数据按chunkSize切成若干块，最后一块可能不满，树的格式与RFC 6962(Certificate Transparency)相同：
+ *  叶子：H(0x00 || 块的内容)
+ *  内部节点：H(0x01 || 左子树 || 右子树)，n个叶子时左子树包含小于n的最大的2的幂个叶子
+ *  没有数据时根为H(空)
+ * 前缀0x00和0x01区分叶子和内部节点，无法用内部节点伪造叶子
+ * 根只由块的内容决定，比较两个TreeHash时还需要比较chunkSize
+ **/
+public final class TreeHash {
+
+    private final long size;
+    private final int chunkSize;
+    private final HashCode root;
+    private final ImmutableList<HashCode> chunkDigests;
+
+    TreeHash(long size, int chunkSize, HashCode root, List<HashCode> chunkDigests) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.root = root;
+        this.chunkDigests = ImmutableList.copyOf(chunkDigests);
+    }
+
+    // 数据的总长度
+    public long size() {
+        return size;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    // Merkle树的根
+    public HashCode root() {
+        return root;
+    }
+
+    // 每一块的摘要，即树的叶子
+    public ImmutableList<HashCode> chunkDigests() {
+        return chunkDigests;
+    }
+
+    public int chunkCount() {
+        return chunkDigests.size();
+    }
+
+    /**
+     * 与另一个相同chunkSize的TreeHash相比，内容不同的块的下标，包括只在其中一边存在的块
+     */
+    public ImmutableList<Integer> changedChunks(TreeHash other) {
+        Preconditions.checkArgument(chunkSize == other.chunkSize,
+                "chunk sizes differ: %s and %s", chunkSize, other.chunkSize);
+        ImmutableList.Builder<Integer> changed = ImmutableList.builder();
+        int count = Math.max(chunkCount(), other.chunkCount());
+        for (int i = 0; i < count; i++) {
+            if (i >= chunkCount() || i >= other.chunkCount() || !chunkDigests.get(i).equals(other.chunkDigests.get(i))) {
+                changed.add(i);
+            }
+        }
+        return changed.build();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof TreeHash)) {
+            return false;
+        }
+        TreeHash that = (TreeHash) object;
+        return size == that.size && chunkSize == that.chunkSize && root.equals(that.root);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, chunkSize, root);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", size)
+                .add("chunkSize", chunkSize)
+                .add("chunks", chunkDigests.size())
+                .add("root", root)
+                .toString();
+    }
+}